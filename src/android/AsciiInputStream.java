@@ -0,0 +1,42 @@
+package cordova.plugin.saveimage;
+
+import java.io.InputStream;
+
+/**
+ * Reads the characters of a string from the given offset as single bytes.
+ * Only meant for ASCII content such as the base64 payload of a data URL.
+ */
+class AsciiInputStream extends InputStream {
+    private final String text;
+    private int position;
+
+    AsciiInputStream(String text, int offset) {
+        this.text = text;
+        this.position = offset;
+    }
+
+    @Override
+    public int read() {
+        return position < text.length() ? text.charAt(position++) & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int count = Math.min(length, text.length() - position);
+        if (count <= 0) {
+            return -1;
+        }
+        for (int i = 0; i < count; i++) {
+            buffer[offset + i] = (byte) text.charAt(position++);
+        }
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return text.length() - position;
+    }
+}
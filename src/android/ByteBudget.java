@@ -0,0 +1,58 @@
+package cordova.plugin.saveimage;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Caps the bytes held in memory by all saves together, e.g. image bytes waiting to be written and decoded bitmaps.
+ * A request larger than the whole budget is clamped to it, so it runs once everything else is released.
+ */
+class ByteBudget {
+    private final long capacity;
+    private long used = 0;
+
+    ByteBudget(long capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Takes the bytes from the budget, waiting until enough were released. Returns the bytes to release later.
+     */
+    synchronized long acquire(long bytes) throws InterruptedIOException {
+        long amount = Math.min(Math.max(bytes, 0), capacity);
+        while (used + amount > capacity) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for memory");
+            }
+        }
+        used += amount;
+        return amount;
+    }
+
+    /**
+     * Takes the bytes from the budget if they are available right away. Returns the bytes to release later, or -1.
+     */
+    synchronized long tryAcquire(long bytes) {
+        long amount = Math.min(Math.max(bytes, 0), capacity);
+        if (used + amount > capacity) {
+            return -1;
+        }
+        used += amount;
+        return amount;
+    }
+
+    synchronized void release(long amount) {
+        used = Math.max(0, used - amount);
+        notifyAll();
+    }
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,101 @@
+package cordova.plugin.saveimage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * Lets a save be stopped from another thread, by the caller or when its deadline passes.
+ * Cancelling interrupts the thread running the save, closes the resources it registered (e.g. its download,
+ * which disconnects a blocked read) and makes every later read or write of the save fail.
+ */
+class Cancellation {
+    final String id;
+    private volatile String reason;
+    private Thread thread;
+    private final ArrayList<Closeable> resources = new ArrayList<Closeable>();
+    private Future<?> deadline;
+
+    static class CancelledException extends InterruptedIOException {
+        CancelledException(String message) {
+            super(message);
+        }
+    }
+
+    Cancellation(String id) {
+        this.id = id;
+    }
+
+    boolean isCancelled() {
+        return reason != null;
+    }
+
+    // Why the save was cancelled, null if it was not
+    String getReason() {
+        return reason;
+    }
+
+    void throwIfCancelled() throws CancelledException {
+        String cancelled = reason;
+        if (cancelled != null) {
+            throw new CancelledException(cancelled);
+        }
+    }
+
+    synchronized void setDeadline(Future<?> deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Binds the save to the current thread, which is interrupted if the save is cancelled while it runs.
+     */
+    synchronized void attach() throws CancelledException {
+        throwIfCancelled();
+        thread = Thread.currentThread();
+    }
+
+    /**
+     * Unbinds the thread once the save no longer runs on it, so a late cancel never interrupts unrelated work.
+     */
+    synchronized void detach() {
+        if (thread == Thread.currentThread()) {
+            thread = null;
+            // Clears an interrupt of this save, the thread goes on with other work
+            Thread.interrupted();
+        }
+        resources.clear();
+    }
+
+    synchronized void register(Closeable resource) throws CancelledException {
+        throwIfCancelled();
+        resources.add(resource);
+    }
+
+    synchronized void cancel(String why) {
+        if (reason != null) {
+            return;
+        }
+        reason = why;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // Do nothing, the save fails either way
+            }
+        }
+        resources.clear();
+    }
+
+    // Stops the deadline timer once the save is over
+    synchronized void close() {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package cordova.plugin.saveimage;
+
+import java.util.ArrayList;
+
+/**
+ * Groups streamed items into chunks, closing a chunk when it holds itemsInChunk items
+ * or when chunkTimeSec passed since it was opened. A limit of 0 disables that rule.
+ */
+class ChunkEmitter<T> {
+
+    interface Clock {
+        long elapsedMillis();
+    }
+
+    interface Sink<T> {
+        void run(ArrayList<T> chunk, int chunkNum, boolean isLastChunk);
+    }
+
+    private final int itemsInChunk;
+    private final double chunkTimeSec;
+    private final Clock clock;
+    private final Sink<T> sink;
+    private ArrayList<T> chunk = new ArrayList<T>();
+    private long chunkStartTime;
+    private int chunkNum = 0;
+
+    ChunkEmitter(int itemsInChunk, double chunkTimeSec, Clock clock, Sink<T> sink) {
+        this.itemsInChunk = itemsInChunk;
+        this.chunkTimeSec = chunkTimeSec;
+        this.clock = clock;
+        this.sink = sink;
+        this.chunkStartTime = clock.elapsedMillis();
+    }
+
+    void add(T item) {
+        chunk.add(item);
+        if ((itemsInChunk > 0 && chunk.size() == itemsInChunk) || (chunkTimeSec > 0 && (clock.elapsedMillis() - chunkStartTime) >= chunkTimeSec * 1000)) {
+            sink.run(chunk, chunkNum, false);
+            chunkNum += 1;
+            chunk = new ArrayList<T>();
+            chunkStartTime = clock.elapsedMillis();
+        }
+    }
+
+    // The last chunk holds the remaining items, it is sent even if empty so the caller always learns about the end
+    void finish() {
+        sink.run(chunk, chunkNum, true);
+    }
+}
@@ -0,0 +1,231 @@
+package cordova.plugin.saveimage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent index of saved images, kept in the app-private shared preferences.
+ * Maps the SHA-256 of the saved bytes to the saved location (content URI or file path),
+ * and remote URLs to the hash and HTTP cache validators of their last download.
+ * Both maps are capped, the least recently used entries are evicted, so the preferences file stays small.
+ */
+class DedupeIndex {
+    private static final String PREFERENCES_NAME = "cordova.plugin.saveimage.dedupe";
+    private static final String HASH_PREFIX = "sha256:";
+    private static final String URL_PREFIX = "url:";
+    private static final int MAX_HASHES = 512;
+    private static final int MAX_URLS = 512;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    // Keys of the preferences, least recently used first
+    private final LinkedHashMap<String, Long> hashesUsed = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> urlsUsed = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    DedupeIndex(Context context) {
+        this.context = context.getApplicationContext();
+        this.preferences = this.context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        load();
+    }
+
+    static class UrlEntry {
+        String hash;
+        String etag;
+        String lastModified;
+        long freshUntil;
+
+        boolean isFresh() {
+            return freshUntil > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns the location saved with the given content hash, or null if unknown or deleted since.
+     */
+    synchronized String findByHash(String hash) {
+        String key = HASH_PREFIX + hash;
+        String value = preferences.getString(key, null);
+        if (value == null) {
+            return null;
+        }
+        String location = locationOf(value);
+        if (location == null || !exists(location)) {
+            hashesUsed.remove(key);
+            preferences.edit().remove(key).apply();
+            return null;
+        }
+        touchHash(key, location);
+        return location;
+    }
+
+    /**
+     * Records the location of freshly saved content. If the same content is already saved the existing location
+     * is returned and the index is left unchanged, otherwise returns null.
+     */
+    synchronized String putContent(String hash, String location) {
+        String existing = findByHash(hash);
+        if (existing != null) {
+            return existing;
+        }
+        SharedPreferences.Editor editor = preferences.edit();
+        String key = HASH_PREFIX + hash;
+        long usedAt = System.currentTimeMillis();
+        hashesUsed.put(key, usedAt);
+        editor.putString(key, hashValue(location, usedAt));
+        evict(hashesUsed, MAX_HASHES, editor);
+        editor.apply();
+        return null;
+    }
+
+    synchronized UrlEntry findByUrl(String url) {
+        String key = URL_PREFIX + url;
+        String value = preferences.getString(key, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(value);
+            UrlEntry entry = new UrlEntry();
+            entry.hash = json.getString("hash");
+            entry.etag = json.optString("etag", null);
+            entry.lastModified = json.optString("lastModified", null);
+            entry.freshUntil = json.optLong("freshUntil", 0);
+            // Only marked as used in memory, the entry is written again when the save records its result
+            urlsUsed.get(key);
+            return entry;
+        } catch (JSONException e) {
+            urlsUsed.remove(key);
+            preferences.edit().remove(key).apply();
+            return null;
+        }
+    }
+
+    synchronized void putUrl(String url, UrlEntry entry) {
+        try {
+            String key = URL_PREFIX + url;
+            long usedAt = System.currentTimeMillis();
+            JSONObject json = new JSONObject();
+            json.put("hash", entry.hash);
+            json.put("etag", entry.etag);
+            json.put("lastModified", entry.lastModified);
+            json.put("freshUntil", entry.freshUntil);
+            json.put("usedAt", usedAt);
+            SharedPreferences.Editor editor = preferences.edit();
+            urlsUsed.put(key, usedAt);
+            editor.putString(key, json.toString());
+            evict(urlsUsed, MAX_URLS, editor);
+            editor.apply();
+        } catch (JSONException e) {
+            // Do nothing, the entry is only an optimization
+        }
+    }
+
+    // Restores the order of use from the times stored with the entries
+    private void load() {
+        ArrayList<Map.Entry<String, Long>> hashes = new ArrayList<Map.Entry<String, Long>>();
+        ArrayList<Map.Entry<String, Long>> urls = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String value = (String) entry.getValue();
+            if (entry.getKey().startsWith(HASH_PREFIX)) {
+                hashes.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), usedAtOf(value)));
+            } else if (entry.getKey().startsWith(URL_PREFIX)) {
+                urls.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), usedAtOf(value)));
+            }
+        }
+        SharedPreferences.Editor editor = preferences.edit();
+        fill(hashesUsed, hashes);
+        fill(urlsUsed, urls);
+        // An index written before it was capped may be over the limits
+        boolean evicted = evict(hashesUsed, MAX_HASHES, editor) | evict(urlsUsed, MAX_URLS, editor);
+        if (evicted) {
+            editor.apply();
+        }
+    }
+
+    private static void fill(LinkedHashMap<String, Long> used, ArrayList<Map.Entry<String, Long>> entries) {
+        Collections.sort(entries, (a, b) -> Long.compare(a.getValue(), b.getValue()));
+        for (Map.Entry<String, Long> entry : entries) {
+            used.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static boolean evict(LinkedHashMap<String, Long> used, int maxEntries, SharedPreferences.Editor editor) {
+        boolean evicted = false;
+        Iterator<String> keys = used.keySet().iterator();
+        while (used.size() > maxEntries && keys.hasNext()) {
+            editor.remove(keys.next());
+            keys.remove();
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    // A hit is written back with its new time, so the order of use survives a restart
+    private void touchHash(String key, String location) {
+        long usedAt = System.currentTimeMillis();
+        hashesUsed.put(key, usedAt);
+        preferences.edit().putString(key, hashValue(location, usedAt)).apply();
+    }
+
+    private static String hashValue(String location, long usedAt) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("location", location);
+            json.put("usedAt", usedAt);
+            return json.toString();
+        } catch (JSONException e) {
+            return location;
+        }
+    }
+
+    // Entries written before the index was capped hold the bare location
+    private static String locationOf(String value) {
+        if (!value.startsWith("{")) {
+            return value;
+        }
+        try {
+            return new JSONObject(value).getString("location");
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static long usedAtOf(String value) {
+        if (!value.startsWith("{")) {
+            return 0;
+        }
+        try {
+            return new JSONObject(value).optLong("usedAt", 0);
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    private boolean exists(String location) {
+        if (!location.startsWith("content://")) {
+            return new File(location).exists();
+        }
+        try (Cursor cursor = context.getContentResolver().query(Uri.parse(location), new String[]{MediaStore.MediaColumns._ID}, null, null, null)) {
+            return cursor != null && cursor.moveToFirst();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+}
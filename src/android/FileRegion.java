@@ -0,0 +1,92 @@
+package cordova.plugin.saveimage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A byte range of a local file, e.g. an uncompressed APK asset or a plain file.
+ * The bytes are moved with {@link FileChannel#transferTo}, so the kernel copies them without a trip through the Java heap.
+ */
+class FileRegion implements Closeable {
+    // Transfers are split so a cancelled save stops between chunks
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private final Closeable owner; // closed with the region, e.g. the asset file descriptor
+
+    FileRegion(FileChannel channel, long offset, long length, Closeable owner) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.owner = owner;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * Reads the first bytes of the region with a positional read, leaving the channel position untouched.
+     * Returns the number of bytes read.
+     */
+    int readHeader(byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header, 0, (int) Math.min(header.length, length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Copies the whole region into the target channel at its current position.
+     */
+    long transferTo(FileChannel target) throws IOException {
+        long position = 0;
+        while (position < length) {
+            long transferred = channel.transferTo(offset + position, Math.min(TRANSFER_CHUNK_SIZE, length - position), target);
+            if (transferred <= 0) {
+                throw new EOFException("The source ended after " + position + " of " + length + " bytes");
+            }
+            position += transferred;
+        }
+        return position;
+    }
+
+    /**
+     * Copies the region into a stream, for targets that are not files.
+     */
+    long copyTo(OutputStream os) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Streams.COPY_BUFFER_SIZE, Math.max(length, 1)));
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int len = channel.read(buffer, offset + position);
+            if (len == -1) {
+                throw new EOFException("The source ended after " + position + " of " + length + " bytes");
+            }
+            os.write(buffer.array(), 0, len);
+            position += len;
+        }
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (owner != null) {
+                owner.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package cordova.plugin.saveimage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps a copy of the first bytes written through it, enough for the image header and EXIF data.
+ */
+class HeaderCaptureOutputStream extends FilterOutputStream {
+    private final byte[] header;
+    private int headerLength = 0;
+
+    HeaderCaptureOutputStream(OutputStream out, int capacity) {
+        super(out);
+        this.header = new byte[capacity];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (headerLength < header.length) {
+            header[headerLength++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        out.write(buffer, offset, length);
+        if (headerLength < header.length) {
+            int captured = Math.min(length, header.length - headerLength);
+            System.arraycopy(buffer, offset, header, headerLength, captured);
+            headerLength += captured;
+        }
+    }
+
+    byte[] getHeader() {
+        return header;
+    }
+
+    int getHeaderLength() {
+        return headerLength;
+    }
+}
@@ -0,0 +1,142 @@
+package cordova.plugin.saveimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image bytes from the bridge, e.g. the ArrayBuffer of saveImageBytes, held until a worker saves them.
+ * Nothing is taken from the memory budget while the save waits in the queue: a running transcode waiting for the budget
+ * would otherwise wait for bytes that only a queued save gives back, and with every worker blocked that save never runs.
+ */
+class ImageBytes {
+
+    interface Spiller {
+        File spill(byte[] data) throws IOException;
+    }
+
+    /**
+     * Keeps waiting bytes in memory while they fit in the free part of the budget next to the other waiting bytes,
+     * the rest is spilled to a file on the spill executor, so the bridge thread never waits for the disk.
+     * Spills run one at a time, the arrays waiting for it are the only ones not accounted for.
+     */
+    static class Holder {
+        private final ExecutorService spillExecutor;
+        private final AtomicLong waiting = new AtomicLong();
+
+        Holder(ExecutorService spillExecutor) {
+            this.spillExecutor = spillExecutor;
+        }
+
+        ImageBytes hold(final byte[] data, ByteBudget budget, final Spiller spiller) {
+            if (budget.getUsed() + waiting.addAndGet(data.length) <= budget.getCapacity()) {
+                return new ImageBytes(data, budget, waiting);
+            }
+            waiting.addAndGet(-data.length);
+            final ImageBytes bytes = new ImageBytes(null, null, null);
+            bytes.spill = spillExecutor.submit(() -> bytes.spilled(spiller.spill(data)));
+            return bytes;
+        }
+
+        // Bytes held in memory by saves that did not start yet
+        long getWaiting() {
+            return waiting.get();
+        }
+    }
+
+    private byte[] data;
+    private final ByteBudget budget;
+    private final AtomicLong waiting;
+    private long reserved = -1; // taken from the budget once a worker started the save, -1 while it waits
+    private Future<File> spill; // writes the bytes that did not fit, null if they are in memory
+    private File file;
+    private boolean released = false;
+
+    private ImageBytes(byte[] data, ByteBudget budget, AtomicLong waiting) {
+        this.data = data;
+        this.budget = budget;
+        this.waiting = waiting;
+    }
+
+    // Called by the spill thread, a spill that finishes after the save was given up is deleted right away
+    private synchronized File spilled(File spilledFile) {
+        if (released) {
+            spilledFile.delete();
+        } else {
+            file = spilledFile;
+        }
+        return spilledFile;
+    }
+
+    /**
+     * Moves bytes held in memory into the memory budget, waiting until enough was released.
+     * Called by the worker when the save starts, it holds no other reservation while it waits.
+     */
+    void reserve() throws InterruptedIOException {
+        byte[] held;
+        synchronized (this) {
+            held = data;
+            if (held == null || reserved >= 0) {
+                return;
+            }
+        }
+        long amount = budget.acquire(held.length);
+        synchronized (this) {
+            if (released) {
+                budget.release(amount);
+                return;
+            }
+            reserved = amount;
+            waiting.addAndGet(-held.length);
+        }
+    }
+
+    // The bytes held in memory, null if they were spilled
+    synchronized byte[] data() {
+        return data;
+    }
+
+    /**
+     * Returns the spill file, waiting for the spill to finish, or null if the bytes are held in memory.
+     */
+    File file() throws IOException {
+        if (spill == null) {
+            return null;
+        }
+        try {
+            return spill.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the bytes were written to the cache");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Gives the bytes back to the budget, or deletes the spill file. Safe to call more than once.
+    synchronized void release() {
+        released = true;
+        if (data != null) {
+            if (reserved >= 0) {
+                budget.release(reserved);
+            } else {
+                waiting.addAndGet(-data.length);
+            }
+            data = null;
+        }
+        if (spill != null) {
+            spill.cancel(false);
+        }
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+}
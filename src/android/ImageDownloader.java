@@ -0,0 +1,491 @@
+package cordova.plugin.saveimage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads remote images over HTTP(S).
+ * Redirects are followed manually (also from http to https, never back), a broken transfer is retried and resumed
+ * with a Range request, and the number of parallel connections per host is capped.
+ */
+class ImageDownloader {
+
+    static class Config {
+        int connectTimeoutMs = 15000;
+        int readTimeoutMs = 30000;
+        int maxRedirects = 5;
+        int maxRetries = 3;
+        long retryBackoffMs = 500;
+        int maxConnectionsPerHost = 4;
+    }
+
+    private final Config config;
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    ImageDownloader(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Opens the body of the given URL. The returned stream holds a connection permit of the host until it is closed.
+     */
+    Download open(String url) throws IOException {
+        return open(url, null, null, null);
+    }
+
+    /**
+     * Opens the body of the given URL for a save that can be cancelled. The download is registered with the
+     * cancellation before it connects, so a cancel also aborts the connect, its retries and their backoff.
+     */
+    Download open(String url, Cancellation cancellation) throws IOException {
+        return open(url, null, null, cancellation);
+    }
+
+    /**
+     * Opens the body of the given URL only if it changed since the given validators were received.
+     * If the server answered 304 Not Modified the returned download is already closed, see {@link Download#isNotModified()}.
+     */
+    Download open(String url, String etag, String lastModified, Cancellation cancellation) throws IOException {
+        Download stream = acquire(url);
+        stream.ifNoneMatch = etag;
+        stream.ifModifiedSince = lastModified;
+        register(stream, cancellation);
+        return connect(stream);
+    }
+
+    /**
+     * Resumes a download of which the first offset bytes were received earlier, e.g. before the process was killed.
+     * The validator of the earlier response makes sure the rest belongs to the same version of the image,
+     * otherwise a {@link ResumeFailedException} is thrown and the download has to start over.
+     */
+    Download resume(String url, long offset, String validator) throws IOException {
+        return resume(url, offset, validator, null);
+    }
+
+    // Like resume(url, offset, validator), registered with the cancellation before it connects
+    Download resume(String url, long offset, String validator, Cancellation cancellation) throws IOException {
+        Download stream = acquire(url);
+        stream.received = offset;
+        stream.validator = validator;
+        register(stream, cancellation);
+        return connect(stream);
+    }
+
+    // Gives the permit back if the save was already cancelled
+    private static void register(Download stream, Cancellation cancellation) throws Cancellation.CancelledException {
+        if (cancellation == null) {
+            return;
+        }
+        try {
+            cancellation.register(stream);
+        } catch (Cancellation.CancelledException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    private Download acquire(String url) throws IOException {
+        URL target = new URL(url);
+        Semaphore permits = permitsFor(target.getHost());
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + target.getHost());
+        }
+        return new Download(target, permits);
+    }
+
+    private Download connect(Download stream) throws IOException {
+        try {
+            stream.connect();
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        if (stream.notModified) {
+            stream.close();
+        }
+        return stream;
+    }
+
+    private Semaphore permitsFor(String host) {
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(Math.max(1, config.maxConnectionsPerHost), true);
+            permits = hostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP
+                || code == HttpURLConnection.HTTP_SEE_OTHER || code == 307 || code == 308;
+    }
+
+    // Client errors will not go away by asking again, except for timeouts and rate limiting
+    private static boolean isRetryable(int code) {
+        return code >= 500 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429;
+    }
+
+    private static class HttpStatusException extends IOException {
+        final int code;
+
+        HttpStatusException(int code, URL url) {
+            super("HTTP " + code + " while downloading " + url);
+            this.code = code;
+        }
+    }
+
+    private static class InsecureRedirectException extends IOException {
+        InsecureRedirectException(URL from, URL to) {
+            super("Refusing redirect from " + from + " to " + to);
+        }
+    }
+
+    static class ResumeFailedException extends IOException {
+        ResumeFailedException(String message) {
+            super(message);
+        }
+    }
+
+    class Download extends InputStream {
+        private final Semaphore permits;
+        private String ifNoneMatch;
+        private String ifModifiedSince;
+        private boolean notModified = false;
+        private String etag;
+        private String lastModified;
+        private long freshUntil = 0;
+        private URL url;
+        // Volatile, close() disconnects them from another thread to abort a blocked connect or read
+        private volatile HttpURLConnection connection;
+        private volatile InputStream body;
+        private String validator; // ETag or Last-Modified of the first response, used for If-Range
+        private long received = 0;
+        private long expectedLength = -1;
+        private int retries = 0;
+        private boolean complete = false; // a resumed download of which every byte was received earlier
+        private volatile boolean closed = false;
+
+        Download(URL url, Semaphore permits) {
+            this.url = url;
+            this.permits = permits;
+        }
+
+        void connect() throws IOException {
+            while (true) {
+                if (closed) {
+                    // Closed from another thread, e.g. the save was cancelled
+                    throw new IOException("Stream closed");
+                }
+                try {
+                    openConnection();
+                    return;
+                } catch (HttpStatusException e) {
+                    if (!isRetryable(e.code)) {
+                        throw e;
+                    }
+                    backOff(e);
+                } catch (ResumeFailedException | InsecureRedirectException e) {
+                    throw e;
+                } catch (InterruptedIOException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    // Connect timeout or no response in time, asked again after the backoff
+                    backOff(e);
+                } catch (IOException e) {
+                    backOff(e);
+                } catch (RuntimeException e) {
+                    if (closed) {
+                        // Some HttpURLConnection implementations fail this way when disconnected from another thread
+                        throw new IOException("Stream closed", e);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        private void openConnection() throws IOException {
+            disconnect();
+            for (int redirects = 0; ; redirects++) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                // Published before connecting, so close() can abort the connect and the wait for the response
+                connection = conn;
+                conn.setConnectTimeout(config.connectTimeoutMs);
+                conn.setReadTimeout(config.readTimeoutMs);
+                conn.setInstanceFollowRedirects(false);
+                if (received > 0) {
+                    conn.setRequestProperty("Range", "bytes=" + received + "-");
+                    if (validator != null) {
+                        conn.setRequestProperty("If-Range", validator);
+                    }
+                } else {
+                    if (ifNoneMatch != null) {
+                        conn.setRequestProperty("If-None-Match", ifNoneMatch);
+                    }
+                    if (ifModifiedSince != null) {
+                        conn.setRequestProperty("If-Modified-Since", ifModifiedSince);
+                    }
+                }
+                int code = conn.getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED && received == 0 && (ifNoneMatch != null || ifModifiedSince != null)) {
+                    readCacheHeaders(conn);
+                    conn.disconnect();
+                    notModified = true;
+                    return;
+                }
+                if (code == 416 && received > 0) {
+                    // Nothing left after the received bytes: the earlier attempt got the whole body, or the image changed
+                    String contentRange = conn.getHeaderField("Content-Range");
+                    conn.disconnect();
+                    if (contentRange == null || !contentRange.startsWith("bytes */") || parseLength(contentRange.substring("bytes */".length())) != received) {
+                        throw new ResumeFailedException("Range not satisfiable while resuming " + url);
+                    }
+                    expectedLength = received;
+                    complete = true;
+                    return;
+                }
+                if (isRedirect(code)) {
+                    String location = conn.getHeaderField("Location");
+                    conn.disconnect();
+                    if (location == null || redirects >= config.maxRedirects) {
+                        throw new IOException("Too many or invalid redirects while downloading " + url);
+                    }
+                    URL next = new URL(url, location);
+                    if ("https".equals(url.getProtocol()) && !"https".equals(next.getProtocol())) {
+                        // Following would silently downgrade the download to plaintext
+                        throw new InsecureRedirectException(url, next);
+                    }
+                    url = next;
+                    continue;
+                }
+                if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                    conn.disconnect();
+                    throw new HttpStatusException(code, url);
+                }
+                connection = conn;
+                body = conn.getInputStream();
+                if (received > 0 && code == HttpURLConnection.HTTP_PARTIAL) {
+                    String contentRange = conn.getHeaderField("Content-Range");
+                    if (contentRange == null || !contentRange.startsWith("bytes " + received + "-")) {
+                        throw new ResumeFailedException("Unexpected Content-Range " + contentRange + " while resuming " + url);
+                    }
+                    if (expectedLength < 0 && conn.getHeaderField("Content-Encoding") == null) {
+                        // bytes first-last/total, the total is unknown when resuming a download of an earlier process
+                        expectedLength = parseLength(contentRange.substring(contentRange.indexOf('/') + 1));
+                    }
+                } else if (received > 0) {
+                    // The server ignored the range or the resource changed, the bytes already written must match again.
+                    // Without a validator there is no telling whether this is the same body, so it is not spliced
+                    if (validator == null || !validator.equals(validatorOf(conn))) {
+                        throw new ResumeFailedException("The image changed on the server during the download: " + url);
+                    }
+                    skipFully(body, received);
+                } else {
+                    validator = validatorOf(conn);
+                    readCacheHeaders(conn);
+                    expectedLength = conn.getHeaderField("Content-Encoding") == null ? parseLength(conn.getHeaderField("Content-Length")) : -1;
+                }
+                return;
+            }
+        }
+
+        private void readCacheHeaders(HttpURLConnection conn) {
+            if (conn.getHeaderField("ETag") != null) {
+                etag = conn.getHeaderField("ETag");
+            }
+            if (conn.getHeaderField("Last-Modified") != null) {
+                lastModified = conn.getHeaderField("Last-Modified");
+            }
+            freshUntil = freshnessOf(conn);
+        }
+
+        boolean isNotModified() {
+            return notModified;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        // Validator of the response, needed to resume the download later
+        String getValidator() {
+            return validator;
+        }
+
+        // Bytes of the body received so far, including those of an earlier attempt
+        long getReceived() {
+            return received;
+        }
+
+        // Wall clock time until which the response may be reused without asking the server, 0 if it must be revalidated
+        long getFreshUntil() {
+            return freshUntil;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int len = read(single, 0, 1);
+            return len == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (complete) {
+                    return -1;
+                }
+                try {
+                    int len = body.read(buffer, offset, length);
+                    if (len == -1) {
+                        if (expectedLength >= 0 && received < expectedLength) {
+                            throw new EOFException("Connection closed after " + received + " of " + expectedLength + " bytes");
+                        }
+                        return -1;
+                    }
+                    received += len;
+                    return len;
+                } catch (InterruptedIOException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    // Read timeout, resume below
+                    backOff(e);
+                    connect();
+                } catch (IOException e) {
+                    backOff(e);
+                    connect();
+                } catch (RuntimeException e) {
+                    if (closed) {
+                        throw new IOException("Stream closed", e);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        private void backOff(IOException cause) throws IOException {
+            // A download closed from another thread fails with whatever the aborted call threw, it is not retried
+            if (closed || retries >= config.maxRetries) {
+                throw cause;
+            }
+            long delay = config.retryBackoffMs << retries;
+            retries += 1;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted: " + url);
+            }
+        }
+
+        // Also called by close() on another thread, so the fields are read once
+        private void disconnect() {
+            InputStream current = body;
+            body = null;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+            HttpURLConnection conn = connection;
+            connection = null;
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        // Synchronized, a cancelled save closes its download from another thread
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // A fully read body is only closed, which keeps the connection alive for the next image
+            if (body != null && (expectedLength < 0 || received >= expectedLength)) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+                body = null;
+                connection = null;
+            }
+            disconnect();
+            permits.release();
+        }
+    }
+
+    private static long freshnessOf(HttpURLConnection conn) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                } else if (directive.startsWith("max-age=")) {
+                    long maxAge = parseLength(directive.substring("max-age=".length()));
+                    return maxAge > 0 ? System.currentTimeMillis() + maxAge * 1000 : 0;
+                }
+            }
+        }
+        return conn.getExpiration();
+    }
+
+    private static String validatorOf(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        // Weak validators are not allowed in If-Range
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        byte[] scratch = new byte[8192];
+        long remaining = count;
+        while (remaining > 0) {
+            int len = is.read(scratch, 0, (int) Math.min(scratch.length, remaining));
+            if (len == -1) {
+                throw new EOFException("Unexpected end of stream while skipping " + count + " bytes");
+            }
+            remaining -= len;
+        }
+    }
+}
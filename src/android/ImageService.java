@@ -1,48 +1,119 @@
 package cordova.plugin.saveimage;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
 import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Base64;
+import android.util.Base64InputStream;
+import android.util.LruCache;
+import android.util.Size;
 
-import org.apache.cordova.CordovaInterface;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Locale;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImageService {
-    private static ImageService instance = null;
-    private SimpleDateFormat dateFormatter;
-    private Pattern dataURLPattern = Pattern.compile("^data:(.+?)/(.+?);base64,");
+    private static volatile ImageService instance = null;
+    // SimpleDateFormat is not thread-safe and saves run concurrently, so every thread gets its own
+    private final ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return formatter;
+        }
+    };
+    private static final String SPOOL_DIRECTORY = "saveimage-spool";
+    private static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    // Enough for the EXIF segment (at most 64 KB) and the frame header that follows it in a JPEG
+    private static final int HEADER_CAPTURE_SIZE = 128 * 1024;
+    private static final int ORIENTATION_CACHE_SIZE = 4096;
+    // EXIF orientations of rows without a MediaStore orientation, keyed by "id:dateModified"
+    private final LruCache<String, Integer> orientationCache = new LruCache<String, Integer>(ORIENTATION_CACHE_SIZE);
+    private static final String THUMBNAIL_DIRECTORY = "saveimage-thumbnails";
+    private static final int THUMBNAIL_MEMORY_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final long THUMBNAIL_DISK_CACHE_SIZE = 64 * 1024 * 1024;
+    // Start of this process, pending MediaStore rows added before it were left behind by a killed process
+    private static final long PROCESS_START_MILLIS = processStartMillis();
+    private DedupeIndex dedupeIndex;
+    private ThumbnailCache thumbnailCache;
+    private SaveJobQueue jobQueue;
+    private LibraryIndex libraryIndex;
+    private final SaveStats stats = new SaveStats();
+    // Bytes held in memory by all saves and thumbnails together: image bytes waiting to be written and decoded bitmaps
+    private volatile ByteBudget memoryBudget = new ByteBudget(Math.min(DEFAULT_MEMORY_BUDGET, Runtime.getRuntime().maxMemory() / 4));
+    private volatile ImageDownloader downloader = new ImageDownloader(new ImageDownloader.Config());
+    // Runs the prefetch stage of batches, separate from the plugin executor so a batch never waits on itself
+    private final ExecutorService batchExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "SaveImage-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Writes the image bytes that do not fit in the memory budget to the cache directory, off the bridge thread
+    private final ExecutorService spillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SaveImage-spill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ImageBytes.Holder heldBytes = new ImageBytes.Holder(spillExecutor);
+
+    // Saves started with an id, so they can be cancelled
+    private final ConcurrentHashMap<String, Cancellation> cancellableSaves = new ConcurrentHashMap<String, Cancellation>();
+    private final ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SaveImage-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     protected ImageService() {
-        dateFormatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        dateFormatter.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
     public static final String PERMISSION_ERROR = "Permission Denial: This application is not allowed to access Photo data.";
@@ -58,69 +129,616 @@ public class ImageService {
         return instance;
     }
 
-    public void saveImage(final Context context, final CordovaInterface cordova, final String fileName, final String url, String album, final JSONObjectRunnable completion) throws IOException, URISyntaxException {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-            // Use MediaStore API for Android 10+
-            saveMediaUsingMediaStore(context, cordova, fileName, url, album, imageMimeToExtension, filePath -> {
-                try {
-                    String whereClause = MediaStore.MediaColumns.DATA + " = \"" + filePath + "\"";
-                    queryLibrary(context, whereClause, (chunk, chunkNum, isLastChunk) -> completion.run(chunk.size() == 1 ? chunk.get(0) : new JSONObject()));
-                } catch (Exception e) {
-                    completion.run(new JSONObject());
+    public void configureDownloads(ImageDownloader.Config config) {
+        downloader = new ImageDownloader(config);
+    }
+
+    public void configureMemoryBudget(long bytes) {
+        memoryBudget = new ByteBudget(bytes);
+    }
+
+    /**
+     * Holds image bytes from the bridge until a worker saves them, see {@link ImageBytes}.
+     */
+    public ImageBytes holdBytes(final Context context, byte[] data) {
+        return heldBytes.hold(data, memoryBudget, bytes -> spool(context, new ByteArrayInputStream(bytes)));
+    }
+
+    ImageDownloader getDownloader() {
+        return downloader;
+    }
+
+    /**
+     * Returns the durable job queue, loading its journal and cleaning up after a killed process on first use.
+     */
+    public synchronized SaveJobQueue getJobQueue(Context context) {
+        if (jobQueue == null) {
+            jobQueue = new SaveJobQueue(context, this);
+        }
+        return jobQueue;
+    }
+
+    private static long processStartMillis() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return System.currentTimeMillis() - (SystemClock.elapsedRealtime() - android.os.Process.getStartElapsedRealtime());
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the counters of all saves and queries since start or the last reset.
+     */
+    public JSONObject getStats(boolean reset) throws JSONException {
+        JSONObject result = stats.toJSON();
+        if (reset) {
+            stats.reset();
+        }
+        return result;
+    }
+
+    public void saveImage(final Context context, final String fileName, final String url, String album, JSONObject options, final JSONObjectRunnable completion) throws IOException {
+        saveImage(context, fileName, url, album, options, (Cancellation) null, completion);
+    }
+
+    /**
+     * Saves the image unless the cancellation is cancelled first. A cancelled save stops at its next read or write,
+     * and a MediaStore record it already inserted is deleted again.
+     */
+    void saveImage(final Context context, final String fileName, final String url, String album, JSONObject options, Cancellation cancellation, final JSONObjectRunnable completion) throws IOException {
+        final SaveTimer timer = new SaveTimer(stats);
+        runCancellable(cancellation, timer, () -> saveImage(context, fileName, url, album, options, timer, timedCompletion(timer, options != null && options.optBoolean("timings"), completion)));
+    }
+
+    /**
+     * Runs the save on the current thread, bound to the cancellation if there is one, and finishes the timer if it fails.
+     */
+    private void runCancellable(Cancellation cancellation, SaveTimer timer, SaveTask task) throws IOException {
+        timer.setCancellation(cancellation);
+        try {
+            if (cancellation != null) {
+                cancellation.attach();
+            }
+            task.run();
+        } catch (IOException | RuntimeException e) {
+            timer.finish(false);
+            if (cancellation != null) {
+                // Reports the cancel instead of whatever the interrupted read or write failed with
+                cancellation.throwIfCancelled();
+            }
+            throw e;
+        } finally {
+            if (cancellation != null) {
+                cancellation.detach();
+                finishCancellable(cancellation);
+            }
+        }
+    }
+
+    /**
+     * Registers a save that can be cancelled by its id, if it has one, and that is cancelled automatically after
+     * timeoutMs, if positive. The deadline counts from now, so the time the save waits for a worker is included.
+     */
+    Cancellation startCancellable(String id, final long timeoutMs) {
+        final Cancellation cancellation = new Cancellation(id);
+        if (id != null) {
+            cancellableSaves.put(id, cancellation);
+        }
+        if (timeoutMs > 0) {
+            cancellation.setDeadline(deadlines.schedule(() -> cancellation.cancel("The save timed out after " + timeoutMs + " ms"), timeoutMs, TimeUnit.MILLISECONDS));
+        }
+        return cancellation;
+    }
+
+    void finishCancellable(Cancellation cancellation) {
+        cancellation.close();
+        if (cancellation.id != null) {
+            cancellableSaves.remove(cancellation.id, cancellation);
+        }
+    }
+
+    /**
+     * Cancels the running or waiting save with the given id. Returns false if there is none, e.g. it already finished.
+     */
+    public boolean cancel(String id) {
+        Cancellation cancellation = cancellableSaves.get(id);
+        if (cancellation == null) {
+            return false;
+        }
+        cancellation.cancel("The save was cancelled");
+        return true;
+    }
+
+    private void saveImage(final Context context, final String fileName, final String url, String album, JSONObject options, SaveTimer timer, final JSONObjectRunnable completion) throws IOException {
+        ImageSource source = ImageSource.parse(url);
+        ImageTranscoder.Options transcode = ImageTranscoder.Options.fromJSON(options, source.mime);
+        if (options == null || !options.optBoolean("dedupe")) {
+            if (transcode == null && (source.isAsset() || source.isFile())) {
+                try (FileRegion region = openFileRegion(context, source)) {
+                    if (region != null) {
+                        saveContent(context, fileName, source, regionWriter(region), album, null, timer, completion);
+                        return;
+                    }
                 }
-            });
+            }
+            saveStream(context, fileName, source, openTimedSource(context, source, timer), album, null, transcode, timer, completion);
+            return;
+        }
+        DedupeIndex index = getDedupeIndex(context);
+        // A transcoded save is a different image than the verbatim one, it is looked up and recorded under its own key
+        String dedupeKey = dedupeKey(url, transcode);
+        DedupeIndex.UrlEntry urlEntry = null;
+        InputStream is;
+        if (source.isRemote()) {
+            DedupeIndex.UrlEntry known = index.findByUrl(dedupeKey);
+            String existing = known != null ? index.findByHash(known.hash) : null;
+            if (existing != null && known.isFresh()) {
+                // Still fresh according to the cache headers of the last download, no need to touch the network
+                completeWithExisting(context, existing, completion);
+                return;
+            }
+            long start = timer.start(SaveStats.DOWNLOAD);
+            ImageDownloader.Download download = downloader.open(url, existing != null ? known.etag : null, existing != null ? known.lastModified : null, timer.getCancellation());
+            timer.stop(SaveStats.DOWNLOAD, start, 0);
+            if (download.isNotModified()) {
+                known.freshUntil = download.getFreshUntil();
+                index.putUrl(dedupeKey, known);
+                completeWithExisting(context, existing, completion);
+                return;
+            }
+            urlEntry = new DedupeIndex.UrlEntry();
+            urlEntry.etag = download.getETag();
+            urlEntry.lastModified = download.getLastModified();
+            urlEntry.freshUntil = download.getFreshUntil();
+            is = timer.timeReads(SaveStats.DOWNLOAD, download);
         } else {
-            // Legacy method for older Android versions
-            saveMedia(context, cordova, fileName, url, album, imageMimeToExtension, filePath -> {
-                try {
-                    String whereClause = MediaStore.MediaColumns.DATA + " = \"" + filePath + "\"";
-                    queryLibrary(context, whereClause, (chunk, chunkNum, isLastChunk) -> completion.run(chunk.size() == 1 ? chunk.get(0) : new JSONObject()));
-                } catch (Exception e) {
-                    completion.run(new JSONObject());
+            is = openTimedSource(context, source, timer);
+        }
+        saveStream(context, fileName, source, is, album, new DedupeRequest(index, dedupeKey, transcode, urlEntry), transcode, timer, completion);
+    }
+
+    /**
+     * Saves raw image bytes, e.g. an ArrayBuffer exported from a canvas, without going through a data URL.
+     * The bytes are released from the memory budget once written. The save can be cancelled like {@link #saveImage}.
+     */
+    public void saveImageBytes(final Context context, final String fileName, final ImageBytes bytes, final String mime, String album, JSONObject options, Cancellation cancellation, final JSONObjectRunnable completion) throws IOException {
+        final SaveTimer timer = new SaveTimer(stats);
+        final JSONObjectRunnable timedCompletion = timedCompletion(timer, options != null && options.optBoolean("timings"), completion);
+        try {
+            runCancellable(cancellation, timer, () -> {
+                ImageSource source = ImageSource.forMime(mime);
+                // Taken from the budget only now, a save waiting in the queue must not hold back running ones
+                bytes.reserve();
+                File file = bytes.file();
+                if (file != null) {
+                    try (FileRegion region = new FileRegion(new FileInputStream(file).getChannel(), 0, file.length(), null)) {
+                        saveContent(context, fileName, source, regionWriter(region), album, null, timer, timedCompletion);
+                    }
+                } else {
+                    InputStream is = timer.timeReads(SaveStats.READ, new ByteArrayInputStream(bytes.data()));
+                    saveStream(context, fileName, source, is, album, null, null, timer, timedCompletion);
                 }
             });
+        } finally {
+            bytes.release();
         }
     }
 
-    private void saveMediaUsingMediaStore(Context context, CordovaInterface cordova, String fileName, String url, String album, Map<String, String> mimeToExtension, FilePathRunnable completion) throws IOException, URISyntaxException {
-        ContentResolver resolver = context.getContentResolver();
-        ContentValues contentValues = new ContentValues();
+    // Adds the stages of a successful save to the stats, and to the result if the caller asked for its timings
+    private static JSONObjectRunnable timedCompletion(final SaveTimer timer, final boolean includeTimings, final JSONObjectRunnable completion) {
+        return result -> {
+            timer.finish(true);
+            if (includeTimings) {
+                try {
+                    result.put("timings", timer.toJSON());
+                } catch (JSONException e) {
+                    // Do nothing, the timings are optional
+                }
+            }
+            completion.run(result);
+        };
+    }
+
+    /**
+     * Saves the stream, closing it when done. With transcode options the source is first spooled to the cache
+     * directory, because downscaling needs to read it twice (bounds first, then the sampled pixels).
+     */
+    private void saveStream(final Context context, final String fileName, ImageSource source, InputStream is, String album, DedupeRequest dedupe, ImageTranscoder.Options transcode, SaveTimer timer, final JSONObjectRunnable completion) throws IOException {
+        File spoolFile = null;
+        try {
+            final InputStream input = dedupe != null ? dedupe.wrap(is) : is;
+            ContentWriter writer;
+            if (transcode != null) {
+                spoolFile = spool(context, input);
+                final File transcodeSource = spoolFile;
+                source = ImageSource.forMime(transcode.mime);
+                // The transcode stage includes the writes of the encoded image
+                writer = os -> {
+                    long start = timer.start(SaveStats.TRANSCODE);
+                    ImageTranscoder.transcode(transcodeSource, transcode, os, memoryBudget);
+                    timer.stop(SaveStats.TRANSCODE, start, 0);
+                };
+            } else {
+                writer = os -> Streams.copy(input, os);
+            }
+            saveContent(context, fileName, source, writer, album, dedupe, timer, completion);
+        } finally {
+            is.close();
+            if (spoolFile != null) {
+                spoolFile.delete();
+            }
+        }
+    }
 
-        String mime = "image/jpeg"; // Default
-        String extension = ".jpg";  // Default
-        byte[] imageData = null;
+    private void saveContent(Context context, String fileName, ImageSource source, ContentWriter writer, String album, DedupeRequest dedupe, SaveTimer timer, JSONObjectRunnable completion) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // Use MediaStore API for Android 10+
+            saveMediaUsingMediaStore(context, fileName, source, writer, album, dedupe, timer, completion);
+        } else {
+            // Legacy method for older Android versions
+            saveMedia(context, fileName, source, writer, album, dedupe, timer, completion);
+        }
+    }
 
-        // Process URL or data URL
-        if (url.startsWith("data:")) {
-            Matcher matcher = dataURLPattern.matcher(url);
-            if (!matcher.find()) {
-                throw new IllegalArgumentException("The dataURL is in incorrect format");
+    /**
+     * Opens an uncompressed asset or a local file as a region of its file, or returns null if it can only be streamed.
+     */
+    private static FileRegion openFileRegion(Context context, ImageSource source) throws IOException {
+        if (source.isAsset()) {
+            AssetFileDescriptor descriptor;
+            try {
+                descriptor = context.getAssets().openFd(source.url.substring(ImageSource.ASSET_URL_PREFIX.length()));
+            } catch (FileNotFoundException e) {
+                // Compressed assets have no file region of their own, they are inflated by AssetManager.open
+                return null;
+            }
+            if (descriptor.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                descriptor.close();
+                return null;
             }
-            mime = matcher.group(1) + "/" + matcher.group(2);
-            int dataPos = matcher.end();
-            String base64 = url.substring(dataPos);
-            imageData = Base64.decode(base64, Base64.DEFAULT);
+            FileInputStream is = descriptor.createInputStream();
+            return new FileRegion(is.getChannel(), descriptor.getStartOffset(), descriptor.getLength(), descriptor);
+        } else if (source.isFile()) {
+            String path = Uri.parse(source.url).getPath();
+            if (path == null) {
+                return null;
+            }
+            FileInputStream is = new FileInputStream(path);
+            return new FileRegion(is.getChannel(), 0, is.getChannel().size(), is);
+        }
+        return null;
+    }
+
+    private static ContentWriter regionWriter(final FileRegion region) {
+        return new ContentWriter() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                region.copyTo(os);
+            }
+
+            @Override
+            public FileRegion region() {
+                return region;
+            }
+        };
+    }
+
+    /**
+     * Saves a file holding the bytes of the given source, e.g. a download completed by the job queue.
+     * The save can be cancelled like {@link #saveImage}, the cancellation may be null.
+     */
+    void saveFile(Context context, String fileName, ImageSource source, File file, String album, JSONObject options, Cancellation cancellation, JSONObjectRunnable completion) throws IOException {
+        SaveTimer timer = new SaveTimer(stats);
+        JSONObjectRunnable timedCompletion = timedCompletion(timer, options != null && options.optBoolean("timings"), completion);
+        runCancellable(cancellation, timer, () -> {
+            ImageTranscoder.Options transcode = ImageTranscoder.Options.fromJSON(options, source.mime);
+            if (options != null && options.optBoolean("dedupe")) {
+                DedupeRequest dedupe = new DedupeRequest(getDedupeIndex(context), dedupeKey(source.url, transcode), transcode, null);
+                saveStream(context, fileName, source, timer.timeReads(SaveStats.READ, new FileInputStream(file)), album, dedupe, transcode, timer, timedCompletion);
+            } else if (transcode != null) {
+                saveStream(context, fileName, source, timer.timeReads(SaveStats.READ, new FileInputStream(file)), album, null, transcode, timer, timedCompletion);
+            } else {
+                try (FileRegion region = new FileRegion(new FileInputStream(file).getChannel(), 0, file.length(), null)) {
+                    saveContent(context, fileName, source, regionWriter(region), album, null, timer, timedCompletion);
+                }
+            }
+        });
+    }
 
-            String mimeExtension = mimeToExtension.get(matcher.group(2));
-            if (mimeExtension != null) {
-                extension = mimeExtension;
+    /**
+     * Deletes the MediaStore rows this app left pending in an earlier process, e.g. when it was killed mid-save.
+     * Rows of this process are never touched, they are published or deleted by the save that inserted them.
+     */
+    void deleteStalePendingRows(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return;
+        }
+        ContentResolver resolver = context.getContentResolver();
+        String whereClause = MediaStore.MediaColumns.IS_PENDING + " = 1 AND " + MediaStore.MediaColumns.DATE_ADDED + " < ?";
+        // DATE_ADDED is in seconds, rounded down so a row of this process is never matched
+        String[] selectionArgs = {String.valueOf(PROCESS_START_MILLIS / 1000 - 1)};
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                Bundle queryArgs = new Bundle();
+                queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, whereClause);
+                queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs);
+                queryArgs.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_ONLY);
+                resolver.delete(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, queryArgs);
             } else {
-                extension = "." + matcher.group(2);
+                resolver.delete(MediaStore.setIncludePending(MediaStore.Images.Media.EXTERNAL_CONTENT_URI), whereClause, selectionArgs);
+            }
+        } catch (RuntimeException e) {
+            // Do nothing, the sweep is repeated on the next start
+        }
+    }
+
+    /**
+     * Deletes the spool files an earlier process left behind, e.g. downloads of a batch when the app was killed.
+     * Files of this process are kept, the save that wrote them deletes them.
+     */
+    void deleteStaleSpoolFiles(Context context) {
+        File[] files = new File(context.getCacheDir(), SPOOL_DIRECTORY).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            // Some file systems keep whole seconds, a second of margin so a file of this process is never matched
+            if (file.lastModified() < PROCESS_START_MILLIS - 1000) {
+                file.delete();
             }
+        }
+    }
+
+    private static File spool(Context context, InputStream is) throws IOException {
+        File spoolDirectory = new File(context.getCacheDir(), SPOOL_DIRECTORY);
+        spoolDirectory.mkdirs();
+        File spoolFile = File.createTempFile("save", ".tmp", spoolDirectory);
+        try (OutputStream os = new FileOutputStream(spoolFile)) {
+            Streams.copy(is, os);
+        } catch (IOException | RuntimeException e) {
+            spoolFile.delete();
+            throw e;
+        }
+        return spoolFile;
+    }
+
+    // Looks the saved item up in the library, only used when the item was not written by this save
+    private void completeWithLibraryItem(Context context, String whereClause, String[] selectionArgs, JSONObjectRunnable completion) {
+        JSONObject item;
+        try {
+            item = queryLibraryItem(context, whereClause, selectionArgs);
+        } catch (Exception e) {
+            item = null;
+        }
+        completion.run(item != null ? item : new JSONObject());
+    }
+
+    // Answers a deduplicated save with the library item that is already saved at the given location
+    private void completeWithExisting(Context context, String location, JSONObjectRunnable completion) {
+        if (location.startsWith("content://")) {
+            String id = String.valueOf(ContentUris.parseId(Uri.parse(location)));
+            completeWithLibraryItem(context, MediaStore.MediaColumns._ID + " = ?", new String[]{id}, completion);
         } else {
-            extension = url.contains(".") ? url.substring(url.lastIndexOf(".")) : "";
-            if (extension.contains("jpg") || extension.contains("JPG")) {
-                extension = ".jpg";
-                mime = "image/jpeg";
-            } else if (extension.contains("png") || extension.contains("PNG")) {
-                extension = ".png";
-                mime = "image/png";
+            completeWithFilePath(context, location, completion);
+        }
+    }
+
+    // Legacy storage only knows the path of the file
+    private void completeWithFilePath(Context context, String filePath, JSONObjectRunnable completion) {
+        completeWithLibraryItem(context, MediaStore.MediaColumns.DATA + " = ?", new String[]{filePath}, completion);
+    }
+
+    private static String dedupeKey(String url, ImageTranscoder.Options transcode) {
+        return transcode != null ? url + "#" + transcode.key() : url;
+    }
+
+    private synchronized DedupeIndex getDedupeIndex(Context context) {
+        if (dedupeIndex == null) {
+            dedupeIndex = new DedupeIndex(context);
+        }
+        return dedupeIndex;
+    }
+
+    /**
+     * Saves every {fileName, url} item of the batch into the album.
+     * Remote items are downloaded by a prefetch stage while earlier items are written, at most prefetch items ahead.
+     * Every item reports its own update, with the timings of its save if includeTimings, the last update of the batch
+     * is the "done" summary.
+     * A cancelled batch stops at the item being saved, which is removed again. The items saved before it are kept
+     * and the summary reports the batch as cancelled.
+     */
+    public void saveImages(final Context context, final JSONArray items, final String album, int prefetch, boolean includeTimings, final Cancellation cancellation, final BatchProgressRunnable progress)
+            throws IOException, InterruptedException, JSONException {
+        final int total = items.length();
+        final BlockingQueue<PreparedItem> prepared = new ArrayBlockingQueue<PreparedItem>(Math.max(1, prefetch));
+        final File spoolDirectory = new File(context.getCacheDir(), SPOOL_DIRECTORY);
+        if (cancellation != null) {
+            try {
+                cancellation.attach();
+            } catch (Cancellation.CancelledException e) {
+                finishCancellable(cancellation);
+                throw e;
+            }
+        }
+        final AtomicBoolean batchOver = new AtomicBoolean(false);
+        Future<?> fetcher = batchExecutor.submit(() -> {
+            try {
+                for (int i = 0; i < total; i++) {
+                    PreparedItem item = prepareItem(context, items.optJSONObject(i), i, spoolDirectory, cancellation);
+                    try {
+                        prepared.put(item);
+                    } catch (InterruptedException e) {
+                        // The batch is over, nobody takes the item any more
+                        item.discard();
+                        throw e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // An item put after the batch stopped taking them
+                if (batchOver.get()) {
+                    discardPrepared(prepared);
+                }
+            }
+        });
+        final ArrayList<String> scanPaths = new ArrayList<String>();
+        int succeeded = 0;
+        int failed = 0;
+        try {
+            for (int completed = 1; completed <= total; completed++) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    break;
+                }
+                PreparedItem item;
+                try {
+                    item = prepared.take();
+                } catch (InterruptedException e) {
+                    if (cancellation != null && cancellation.isCancelled()) {
+                        break;
+                    }
+                    throw e;
+                }
+                boolean saved = false;
+                JSONObject update = new JSONObject();
+                update.put("index", item.index);
+                update.put("fileName", item.fileName);
+                update.put("completed", completed);
+                update.put("total", total);
+                try {
+                    if (item.error != null) {
+                        throw item.error;
+                    }
+                    // Spooled downloads and local files are transferred channel to channel, everything else is streamed
+                    File spoolFile = item.spoolFile;
+                    try (FileRegion region = spoolFile != null ? new FileRegion(new FileInputStream(spoolFile).getChannel(), 0, spoolFile.length(), null) : openFileRegion(context, item.source);
+                         InputStream is = region == null ? openTimedSource(context, item.source, item.timer) : null) {
+                        ContentWriter writer = region != null ? regionWriter(region) : os -> Streams.copy(is, os);
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                            SavedImage image = writeToMediaStore(context.getContentResolver(), item.fileName, item.source, album, writer, item.timer);
+                            update.put("uri", image.uri.toString());
+                            update.put("item", libraryItem(ContentUris.parseId(image.uri), image.path, image.displayName, image.info, image.dateTaken));
+                        } else {
+                            SavedImage image = writeToAlbumDirectory(item.fileName, item.source, album, writer, item.timer);
+                            scanPaths.add(image.file.getAbsolutePath());
+                            update.put("filePath", image.file.getAbsolutePath());
+                        }
+                    }
+                    update.put("type", "item");
+                    saved = true;
+                    succeeded += 1;
+                } catch (Exception e) {
+                    failed += 1;
+                    update.put("type", "error");
+                    update.put("error", e.getMessage());
+                } finally {
+                    item.timer.finish(saved);
+                    if (item.spoolFile != null) {
+                        item.spoolFile.delete();
+                    }
+                }
+                if (includeTimings) {
+                    update.put("timings", item.timer.toJSON());
+                }
+                progress.run(update, false);
+            }
+        } finally {
+            batchOver.set(true);
+            fetcher.cancel(true);
+            // Items downloaded ahead of a cancelled or failed batch
+            discardPrepared(prepared);
+            if (cancellation != null) {
+                cancellation.detach();
+                finishCancellable(cancellation);
+            }
+        }
+        final JSONObject summary = new JSONObject();
+        summary.put("type", "done");
+        summary.put("completed", succeeded);
+        summary.put("failed", failed);
+        summary.put("total", total);
+        if (cancellation != null && cancellation.isCancelled()) {
+            summary.put("cancelled", true);
+            summary.put("error", cancellation.getReason());
+        }
+        if (scanPaths.isEmpty()) {
+            progress.run(summary, true);
+            return;
+        }
+        // Legacy storage: a single scan over the whole batch instead of one per file
+        final AtomicInteger pendingScans = new AtomicInteger(scanPaths.size());
+        MediaScannerConnection.scanFile(context, scanPaths.toArray(new String[0]), null, (path, uri) -> {
+            if (pendingScans.decrementAndGet() == 0) {
+                progress.run(summary, true);
+            }
+        });
+    }
+
+    private static void discardPrepared(BlockingQueue<PreparedItem> prepared) {
+        PreparedItem item;
+        while ((item = prepared.poll()) != null) {
+            item.discard();
+        }
+    }
+
+    private PreparedItem prepareItem(Context context, JSONObject json, int index, File spoolDirectory, Cancellation cancellation) {
+        PreparedItem item = new PreparedItem(index, new SaveTimer(stats));
+        // Downloads of the prefetch stage are closed by a cancel as well
+        item.timer.setCancellation(cancellation);
+        try {
+            if (json == null) {
+                throw new IllegalArgumentException("Batch item " + index + " is not an object");
+            }
+            item.fileName = json.getString("fileName");
+            item.source = ImageSource.parse(json.getString("url"));
+            if (item.source.isRemote()) {
+                // Download ahead of the writer so network reads overlap with MediaStore writes
+                spoolDirectory.mkdirs();
+                item.spoolFile = File.createTempFile("item", ".tmp", spoolDirectory);
+                try (InputStream is = openTimedSource(context, item.source, item.timer); OutputStream os = new FileOutputStream(item.spoolFile)) {
+                    Streams.copy(is, os);
+                }
             }
+        } catch (Exception e) {
+            if (item.spoolFile != null) {
+                item.spoolFile.delete();
+                item.spoolFile = null;
+            }
+            item.error = e;
         }
+        return item;
+    }
+
+    private void saveMediaUsingMediaStore(Context context, String fileName, ImageSource source, ContentWriter writer, String album, DedupeRequest dedupe, SaveTimer timer, JSONObjectRunnable completion) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        SavedImage saved = writeToMediaStore(resolver, fileName, source, album, writer, timer);
+        if (dedupe != null) {
+            String existing = dedupe.record(saved.uri.toString());
+            if (existing != null) {
+                // Same bytes are already in the library, drop the new copy
+                resolver.delete(saved.uri, null, null);
+                completeWithExisting(context, existing, completion);
+                return;
+            }
+        }
+        // The result is built from what was just written, no need to query the library again
+        try {
+            completion.run(libraryItem(ContentUris.parseId(saved.uri), saved.path, saved.displayName, saved.info, saved.dateTaken));
+        } catch (JSONException e) {
+            completion.run(new JSONObject());
+        }
+    }
+
+    /**
+     * Inserts a pending MediaStore record, lets the writer fill it and publishes it.
+     * The record is removed again if the write fails.
+     */
+    private SavedImage writeToMediaStore(ContentResolver resolver, String fileName, ImageSource source, String album, ContentWriter writer, SaveTimer timer) throws IOException {
+        ContentValues contentValues = new ContentValues();
+        String displayName = fileName + source.extension;
 
         // Setup content values for MediaStore
-        contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName + extension);
-        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, mime);
+        contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, displayName);
+        contentValues.put(MediaStore.MediaColumns.MIME_TYPE, source.mime);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, Environment.DIRECTORY_PICTURES + "/" + album);
@@ -128,164 +746,519 @@ public class ImageService {
         }
 
         // Insert the image into MediaStore
+        long start = timer.start(SaveStats.INSERT);
         Uri imageUri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, contentValues);
         if (imageUri == null) {
             throw new IOException("Failed to create new MediaStore record");
         }
+        timer.stop(SaveStats.INSERT, start, 0);
 
-        try (OutputStream os = resolver.openOutputStream(imageUri)) {
-            if (os == null) {
+        byte[] header;
+        try {
+            ParcelFileDescriptor descriptor = resolver.openFileDescriptor(imageUri, "w");
+            if (descriptor == null) {
                 throw new IOException("Failed to open output stream");
             }
-
-            if (imageData != null) {
-                // Write base64 decoded data
-                os.write(imageData);
-            } else {
-                // Write from URL
-                InputStream is;
-                if (url.startsWith("file:///android_asset/")) {
-                    String assetUrl = url.replace("file:///android_asset/", "");
-                    is = cordova.getActivity().getApplicationContext().getAssets().open(assetUrl);
-                } else {
-                    is = new URL(url).openStream();
-                }
-                copyStream(is, os);
-                is.close();
+            try (FileOutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor)) {
+                header = writeContent(os, writer, timer);
             }
+        } catch (IOException | RuntimeException e) {
+            resolver.delete(imageUri, null, null);
+            throw e;
+        }
 
-            os.flush();
+        start = timer.start(SaveStats.METADATA);
+        ImageInfo info = readImageInfo(header, null);
+        if (info.width == 0) {
+            // Dimensions are not in the captured header, decode the bounds from the saved file instead
+            try (InputStream saved = resolver.openInputStream(imageUri)) {
+                readBounds(saved, info);
+            } catch (IOException e) {
+                // Do nothing
+            }
         }
+        timer.stop(SaveStats.METADATA, start, 0);
+        // The capture date from EXIF, the time of the save only for images without one
+        long dateTaken = info.dateTaken > 0 ? info.dateTaken : System.currentTimeMillis();
 
+        String path = imageUri.toString();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            start = timer.start(SaveStats.PUBLISH);
             contentValues.clear();
             contentValues.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            contentValues.put(MediaStore.Images.ImageColumns.DATE_TAKEN, dateTaken);
             resolver.update(imageUri, contentValues, null, null);
+            // The id of a saved image is "imageid;imageurl" with its file path, like the ids of getLibrary,
+            // and MediaStore may have renamed the file to avoid a clash
+            try (Cursor cursor = resolver.query(imageUri, new String[]{MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DISPLAY_NAME}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    path = cursor.isNull(0) ? path : cursor.getString(0);
+                    displayName = cursor.isNull(1) ? displayName : cursor.getString(1);
+                }
+            } catch (RuntimeException e) {
+                // Do nothing, the content URI identifies the image as well
+            }
+            timer.stop(SaveStats.PUBLISH, start, 0);
         }
+        return new SavedImage(imageUri, null, path, displayName, info, dateTaken);
+    }
 
-        // Get the file path for the completion callback
-        String[] projection = {MediaStore.Images.Media.DATA};
-        Cursor cursor = resolver.query(imageUri, projection, null, null, null);
-        String filePath = null;
-        if (cursor != null && cursor.moveToFirst()) {
-            int columnIndex = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-            filePath = cursor.getString(columnIndex);
-            cursor.close();
+    /**
+     * Lets the writer fill the target and returns the header of the written image.
+     * File regions are transferred channel to channel, their header is read from the source instead of captured on the way.
+     */
+    private static byte[] writeContent(FileOutputStream target, ContentWriter writer, SaveTimer timer) throws IOException {
+        FileRegion region = writer.region();
+        if (region != null) {
+            byte[] header = new byte[(int) Math.min(HEADER_CAPTURE_SIZE, region.length())];
+            int headerLength = region.readHeader(header);
+            long start = timer.start(SaveStats.WRITE);
+            long bytes = region.transferTo(target.getChannel());
+            timer.stop(SaveStats.WRITE, start, bytes);
+            return headerLength == header.length ? header : Arrays.copyOf(header, headerLength);
         }
+        HeaderCaptureOutputStream capture = new HeaderCaptureOutputStream(timer.timeWrites(SaveStats.WRITE, target), HEADER_CAPTURE_SIZE);
+        writer.writeTo(capture);
+        capture.flush();
+        return Arrays.copyOf(capture.getHeader(), capture.getHeaderLength());
+    }
 
-        if (filePath != null) {
-            completion.run(filePath);
-        } else {
-            // If path couldn't be determined, use URI string as fallback
-            completion.run(imageUri.toString());
-        }
-    }
-
-    private ArrayList<JSONObject> queryContentProvider(Context context, Uri collection, JSONObject columns, String whereClause) throws JSONException {
-        final ArrayList<String> columnNames = new ArrayList<String>();
-        final ArrayList<String> columnValues = new ArrayList<String>();
-        Iterator<String> iteratorFields = columns.keys();
-        while (iteratorFields.hasNext()) {
-            String column = iteratorFields.next();
-            columnNames.add(column);
-            columnValues.add("" + columns.getString(column));
-        }
-        final String sortOrder = MediaStore.Images.Media.DATE_TAKEN + " DESC";
-        final Cursor cursor = context.getContentResolver().query(collection, columnValues.toArray(new String[columns.length()]), whereClause, null, sortOrder);
-        final ArrayList<JSONObject> buffer = new ArrayList<JSONObject>();
-        if (cursor.moveToFirst()) {
-            do {
-                JSONObject item = new JSONObject();
-                for (String column : columnNames) {
-                    int columnIndex = cursor.getColumnIndex(columns.get(column).toString());
-                    if (column.startsWith("int.")) {
-                        item.put(column.substring(4), cursor.getInt(columnIndex));
-                        if (column.substring(4).equals("width") && item.getInt("width") == 0) {
-                            System.err.println("cursor: " + cursor.getInt(columnIndex));
-                        }
-                    } else if (column.startsWith("float.")) {
-                        item.put(column.substring(6), cursor.getFloat(columnIndex));
-                    } else if (column.startsWith("date.")) {
-                        long intDate = cursor.getLong(columnIndex);
-                        Date date = new Date(intDate);
-                        item.put(column.substring(5), dateFormatter.format(date));
-                    } else {
-                        item.put(column, cursor.getString(columnIndex));
-                    }
-                }
-                buffer.add(item);
-                // TODO: return partial result
-            }
-            while (cursor.moveToNext());
-        }
-        cursor.close();
-        return buffer;
-    }
-
-    private void queryLibrary(Context context, String whereClause, ChunkResultRunnable completion) throws JSONException {
-        queryLibrary(context, 0, 0, false, whereClause, completion);
-    }
-
-    private void queryLibrary(Context context, int itemsInChunk, double chunkTimeSec, boolean includeAlbumData, String whereClause, ChunkResultRunnable completion)
-            throws JSONException {
-        JSONObject columns = new JSONObject() {{
-            put("int.id", MediaStore.Images.Media._ID);
-            put("fileName", MediaStore.Images.ImageColumns.DISPLAY_NAME);
-            put("int.width", MediaStore.Images.ImageColumns.WIDTH);
-            put("int.height", MediaStore.Images.ImageColumns.HEIGHT);
-            put("albumId", MediaStore.Images.ImageColumns.BUCKET_ID);
-            put("date.creationDate", MediaStore.Images.ImageColumns.DATE_TAKEN);
-            put("float.latitude", MediaStore.Images.ImageColumns.LATITUDE);
-            put("float.longitude", MediaStore.Images.ImageColumns.LONGITUDE);
-            put("nativeURL", MediaStore.MediaColumns.DATA); // will not be returned to javascript
-        }};
-        final ArrayList<JSONObject> queryResults = queryContentProvider(context, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, columns, whereClause);
-        ArrayList<JSONObject> chunk = new ArrayList<JSONObject>();
-        long chunkStartTime = SystemClock.elapsedRealtime();
-        int chunkNum = 0;
-        for (int i = 0; i < queryResults.size(); i++) {
-            JSONObject queryResult = queryResults.get(i);
-            // swap width and height if needed
-            try {
-                if (queryResult.has("nativeURL") && queryResult.getString("nativeURL") != null) {
-                    int orientation = getImageOrientation(new File(queryResult.getString("nativeURL")));
-                    if (isOrientationSwapsDimensions(orientation)) { // swap width and height
-                        int tempWidth = queryResult.getInt("width");
-                        queryResult.put("width", queryResult.getInt("height"));
-                        queryResult.put("height", tempWidth);
-                    }
-                }
+    private JSONObject libraryItem(long id, String nativeURL, String fileName, ImageInfo info, long dateTaken) throws JSONException {
+        boolean swapDimensions = isOrientationSwapsDimensions(info.orientation);
+        JSONObject item = new JSONObject();
+        // photoId is in format "imageid;imageurl"
+        item.put("id", id + ";" + nativeURL);
+        item.put("fileName", fileName);
+        item.put("width", swapDimensions ? info.height : info.width);
+        item.put("height", swapDimensions ? info.width : info.height);
+        item.put("creationDate", dateFormatter.get().format(new Date(dateTaken)));
+        item.put("latitude", info.latitude);
+        item.put("longitude", info.longitude);
+        return item;
+    }
+
+    /**
+     * Reads dimensions, orientation, location and capture date from the header captured while the image was written.
+     * The file is only opened when the header is not enough (or ExifInterface can not read streams before Android 7).
+     */
+    private static ImageInfo readImageInfo(byte[] header, File file) {
+        ImageInfo info = new ImageInfo();
+        readBounds(new ByteArrayInputStream(header), info);
+        if (info.width == 0 && file != null) {
+            try (InputStream is = new FileInputStream(file)) {
+                readBounds(is, info);
             } catch (IOException e) {
                 // Do nothing
             }
-            // photoId is in format "imageid;imageurl"
-            queryResult.put("id", queryResult.get("id") + ";" + queryResult.get("nativeURL"));
-            queryResult.remove("nativeURL"); // Not needed
-            String albumId = queryResult.getString("albumId");
-            queryResult.remove("albumId");
+        }
+        try {
+            ExifInterface exif;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                exif = new ExifInterface(new ByteArrayInputStream(header));
+            } else if (file != null) {
+                exif = new ExifInterface(file.getAbsolutePath());
+            } else {
+                return info;
+            }
+            info.orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            info.dateTaken = parseExifDate(exif.getAttribute(ExifInterface.TAG_DATETIME_ORIGINAL), exif.getAttribute(ExifInterface.TAG_OFFSET_TIME_ORIGINAL));
+            float[] latLong = new float[2];
+            if (exif.getLatLong(latLong)) {
+                info.latitude = latLong[0];
+                info.longitude = latLong[1];
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not every format has EXIF data
+        }
+        return info;
+    }
+
+    /**
+     * Parses an EXIF date ("yyyy:MM:dd HH:mm:ss"), in the given offset or else the local time zone like the camera clock.
+     * Returns 0 if the date is missing or blank.
+     */
+    private static long parseExifDate(String dateTime, String offset) {
+        if (dateTime == null || dateTime.trim().isEmpty() || dateTime.startsWith("0000")) {
+            return 0;
+        }
+        try {
+            if (offset != null && offset.matches("[+-]\\d{2}:\\d{2}")) {
+                return new SimpleDateFormat("yyyy:MM:dd HH:mm:ssXXX", Locale.US).parse(dateTime.trim() + offset).getTime();
+            }
+            return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).parse(dateTime.trim()).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    private static void readBounds(InputStream is, ImageInfo info) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(is, null, options);
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            info.width = options.outWidth;
+            info.height = options.outHeight;
+        }
+    }
+
+    private InputStream openSource(Context context, ImageSource source, Cancellation cancellation) throws IOException {
+        if (source.isDataURL()) {
+            // Decode while copying, the payload is never duplicated into a substring or a byte array
+            return new Base64InputStream(new AsciiInputStream(source.url, source.dataPos), Base64.DEFAULT);
+        } else if (source.isAsset()) {
+            return context.getAssets().open(source.url.substring(ImageSource.ASSET_URL_PREFIX.length()));
+        } else if (source.isRemote()) {
+            return downloader.open(source.url, cancellation);
+        } else {
+            return new URL(source.url).openStream();
+        }
+    }
+
+    // Opens the source and counts the time spent opening and reading it towards its stage
+    private InputStream openTimedSource(Context context, ImageSource source, SaveTimer timer) throws IOException {
+        String stage = source.isRemote() ? SaveStats.DOWNLOAD : source.isDataURL() ? SaveStats.DECODE : SaveStats.READ;
+        long start = timer.start(stage);
+        InputStream is = openSource(context, source, timer.getCancellation());
+        timer.stop(stage, start, 0);
+        return timer.timeReads(stage, is);
+    }
+
+    /**
+     * Streams the library to the completion in chunks.
+     * The rows come from the in-memory library index, which only goes back to MediaStore when the library changed.
+     */
+    public void getLibrary(Context context, JSONObject options, ChunkResultRunnable completion) throws JSONException {
+        final boolean includeAlbumData = options.optBoolean("includeAlbumData", false);
+        final ChunkEmitter<JSONObject> chunks = new ChunkEmitter<JSONObject>(options.optInt("itemsInChunk", 0), options.optDouble("chunkTimeSec", 0), SystemClock::elapsedRealtime, completion::run);
+        forEachLibraryRow(context, options, (library, row) -> chunks.add(libraryRow(library, row, includeAlbumData)));
+        chunks.finish();
+    }
+
+    /**
+     * Streams the library like {@link #getLibrary}, but every chunk is a set of parallel arrays, one per field,
+     * instead of one object per image. Dates are epoch milliseconds and ids are split into ids and nativeURLs,
+     * so nothing is formatted or concatenated per row and the keys are not repeated on the bridge.
+     */
+    public void getLibraryColumns(Context context, JSONObject options, final ColumnsResultRunnable completion) throws JSONException {
+        final boolean includeAlbumData = options.optBoolean("includeAlbumData", false);
+        // The snapshot the rows belong to, set by the first row before any chunk is sent
+        final LibraryIndex.Snapshot[] current = new LibraryIndex.Snapshot[1];
+        final ChunkEmitter<Integer> chunks = new ChunkEmitter<Integer>(options.optInt("itemsInChunk", 0), options.optDouble("chunkTimeSec", 0), SystemClock::elapsedRealtime,
+                (rows, chunkNum, isLastChunk) -> completion.run(libraryColumns(current[0], rows, includeAlbumData), chunkNum, isLastChunk));
+        forEachLibraryRow(context, options, (library, row) -> {
+            current[0] = library;
+            chunks.add(row);
+        });
+        chunks.finish();
+    }
+
+    /**
+     * Passes the rows of the library index matching albumId, offset and limit of the options to the visitor, newest first.
+     */
+    private void forEachLibraryRow(Context context, JSONObject options, LibraryRowRunnable visitor) throws JSONException {
+        String albumId = options.optString("albumId", null);
+        int offset = Math.max(0, options.optInt("offset", 0));
+        int limit = options.optInt("limit", 0);
+        long start = System.nanoTime();
+        LibraryIndex.Snapshot library;
+        try {
+            library = getLibraryIndex(context).snapshot();
+        } catch (RuntimeException e) {
+            stats.recordError(SaveStats.QUERY);
+            throw e;
+        }
+        int matched = 0;
+        int rows = 0;
+        for (int position = 0; position < library.size && (limit <= 0 || rows < limit); position++) {
+            int row = library.order[position];
+            if (albumId != null && !albumId.equals(library.albumIds[row])) {
+                continue;
+            }
+            if (matched++ < offset) {
+                continue;
+            }
+            visitor.run(library, row);
+            rows++;
+        }
+        // Rows instead of bytes for the query stage
+        stats.record(SaveStats.QUERY, System.nanoTime() - start, rows);
+    }
+
+    private JSONObject libraryColumns(LibraryIndex.Snapshot library, ArrayList<Integer> rows, boolean includeAlbumData) {
+        JSONArray ids = new JSONArray();
+        JSONArray nativeURLs = new JSONArray();
+        JSONArray fileNames = new JSONArray();
+        JSONArray widths = new JSONArray();
+        JSONArray heights = new JSONArray();
+        JSONArray dates = new JSONArray();
+        JSONArray latitudes = new JSONArray();
+        JSONArray longitudes = new JSONArray();
+        JSONArray albumIds = new JSONArray();
+        for (int row : rows) {
+            boolean swapDimensions = isOrientationSwapsDimensions(getOrientation(library.ids[row], library.orientations[row], library.paths[row], library.datesModified[row]));
+            ids.put(library.ids[row]);
+            nativeURLs.put(library.paths[row]);
+            fileNames.put(library.fileNames[row]);
+            widths.put(swapDimensions ? library.heights[row] : library.widths[row]);
+            heights.put(swapDimensions ? library.widths[row] : library.heights[row]);
+            dates.put(library.datesTaken[row]);
+            // Boxed, JSONArray.put(double) only throws for NaN which MediaStore never returns
+            latitudes.put((Object) library.latitudes[row]);
+            longitudes.put((Object) library.longitudes[row]);
+            if (includeAlbumData) {
+                albumIds.put(library.albumIds[row]);
+            }
+        }
+        JSONObject columns = new JSONObject();
+        try {
+            columns.put("ids", ids);
+            columns.put("nativeURLs", nativeURLs);
+            columns.put("fileNames", fileNames);
+            columns.put("widths", widths);
+            columns.put("heights", heights);
+            columns.put("dates", dates);
+            columns.put("latitudes", latitudes);
+            columns.put("longitudes", longitudes);
             if (includeAlbumData) {
-                JSONArray albumsArray = new JSONArray();
-                albumsArray.put(albumId);
-                queryResult.put("albumIds", albumsArray);
+                columns.put("albumIds", albumIds);
+            }
+        } catch (JSONException e) {
+            // Do nothing, the keys are never null
+        }
+        return columns;
+    }
+
+    // Same fields as the items returned by the saves
+    private JSONObject libraryRow(LibraryIndex.Snapshot library, int row, boolean includeAlbumData) throws JSONException {
+        int orientation = getOrientation(library.ids[row], library.orientations[row], library.paths[row], library.datesModified[row]);
+        boolean swapDimensions = isOrientationSwapsDimensions(orientation);
+        JSONObject item = new JSONObject();
+        // photoId is in format "imageid;imageurl"
+        item.put("id", library.ids[row] + ";" + library.paths[row]);
+        item.put("fileName", library.fileNames[row]);
+        item.put("width", swapDimensions ? library.heights[row] : library.widths[row]);
+        item.put("height", swapDimensions ? library.widths[row] : library.heights[row]);
+        item.put("creationDate", dateFormatter.get().format(new Date(library.datesTaken[row])));
+        item.put("latitude", library.latitudes[row]);
+        item.put("longitude", library.longitudes[row]);
+        if (includeAlbumData) {
+            JSONArray albumsArray = new JSONArray();
+            albumsArray.put(library.albumIds[row]);
+            item.put("albumIds", albumsArray);
+        }
+        return item;
+    }
+
+    /**
+     * Returns the albums of the library with their image count and newest image, most recently used album first.
+     */
+    public JSONArray getAlbums(Context context) throws JSONException {
+        LibraryIndex.Album[] albums = getLibraryIndex(context).albums();
+        JSONArray result = new JSONArray();
+        for (LibraryIndex.Album album : albums) {
+            JSONObject item = new JSONObject();
+            item.put("id", album.id);
+            item.put("name", album.name);
+            item.put("count", album.count);
+            // Same format as the ids of getLibrary, so the cover can be passed to getThumbnail
+            item.put("coverId", album.coverId + ";" + album.coverPath);
+            result.put(item);
+        }
+        return result;
+    }
+
+    private synchronized LibraryIndex getLibraryIndex(Context context) {
+        if (libraryIndex == null) {
+            libraryIndex = new LibraryIndex(context);
+        }
+        return libraryIndex;
+    }
+
+    /**
+     * Returns a JPEG thumbnail of the library image, fitting in width x height.
+     * Thumbnails are cached in memory and on disk, keyed by id and modification date so edited images are not stale.
+     */
+    public byte[] getThumbnail(Context context, String photoId, int width, int height, int quality) throws IOException {
+        // photoId is in format "imageid;imageurl", a bare image id is accepted as well
+        int separator = photoId.indexOf(';');
+        long id = Long.parseLong(separator >= 0 ? photoId.substring(0, separator) : photoId);
+        ContentResolver resolver = context.getContentResolver();
+        String[] projection = {MediaStore.MediaColumns.DATA, MediaStore.MediaColumns.DATE_MODIFIED, MediaStore.Images.ImageColumns.ORIENTATION};
+        String filePath;
+        long dateModified;
+        int orientationDegrees;
+        try (Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, MediaStore.MediaColumns._ID + " = ?", new String[]{String.valueOf(id)}, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                throw new FileNotFoundException("No image with id " + id);
+            }
+            filePath = cursor.getString(0);
+            dateModified = cursor.getLong(1);
+            orientationDegrees = cursor.getInt(2);
+        }
+
+        ThumbnailCache cache = getThumbnailCache(context);
+        String key = id + "_" + dateModified + "_" + width + "x" + height + "_" + quality + ".jpg";
+        byte[] data = cache.get(key);
+        if (data != null) {
+            return data;
+        }
+
+        // The decoded bitmap, an intermediate one for scaling or rotation, and the encoded result are at most this big
+        ByteBudget budget = memoryBudget;
+        long reserved = budget.acquire(3L * 4 * width * height);
+        try {
+            Bitmap thumbnail;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                thumbnail = resolver.loadThumbnail(ContentUris.withAppendedId(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id), new Size(width, height), null);
+            } else {
+                thumbnail = decodeThumbnail(filePath, width, height, orientationDegrees, cache);
             }
-            chunk.add(queryResult);
-            if (i == queryResults.size() - 1) { // Last item
-                completion.run(chunk, chunkNum, true);
-            } else if ((itemsInChunk > 0 && chunk.size() == itemsInChunk) || (chunkTimeSec > 0 && (SystemClock.elapsedRealtime() - chunkStartTime) >= chunkTimeSec * 1000)) {
-                completion.run(chunk, chunkNum, false);
-                chunkNum += 1;
-                chunk = new ArrayList<JSONObject>();
-                chunkStartTime = SystemClock.elapsedRealtime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            cache.releaseBitmap(thumbnail);
+            data = out.toByteArray();
+        } finally {
+            budget.release(reserved);
+        }
+        cache.put(key, data);
+        return data;
+    }
+
+    // Subsampled decode for Android 9 and below, where ContentResolver.loadThumbnail does not exist
+    private static Bitmap decodeThumbnail(String filePath, int width, int height, int orientationDegrees, ThumbnailCache cache) throws IOException {
+        if (filePath == null) {
+            throw new FileNotFoundException("The image has no file");
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Could not decode " + filePath);
+        }
+        boolean rotated = orientationDegrees == 90 || orientationDegrees == 270;
+        int targetWidth = rotated ? height : width;
+        int targetHeight = rotated ? width : height;
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= targetWidth && options.outHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        int sampledWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+        int sampledHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = cache.takeReusableBitmap(sampledWidth * sampledHeight * 4);
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeFile(filePath, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can not be reused for this image
+            cache.releaseBitmap(options.inBitmap);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeFile(filePath, options);
+        }
+        if (decoded == null) {
+            throw new IOException("Could not decode " + filePath);
+        }
+
+        float scale = Math.min(1f, Math.min((float) targetWidth / decoded.getWidth(), (float) targetHeight / decoded.getHeight()));
+        if (scale == 1f && orientationDegrees == 0) {
+            return decoded;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(orientationDegrees);
+        Bitmap thumbnail = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+        if (thumbnail != decoded) {
+            cache.releaseBitmap(decoded);
+        }
+        return thumbnail;
+    }
+
+    private synchronized ThumbnailCache getThumbnailCache(Context context) {
+        if (thumbnailCache == null) {
+            int memoryBudget = (int) Math.min(THUMBNAIL_MEMORY_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 16);
+            thumbnailCache = new ThumbnailCache(new File(context.getCacheDir(), THUMBNAIL_DIRECTORY), memoryBudget, THUMBNAIL_DISK_CACHE_SIZE);
+        }
+        return thumbnailCache;
+    }
+
+    /**
+     * Looks a single image up in MediaStore and returns it in the format of the library rows, or null if there is none.
+     */
+    private JSONObject queryLibraryItem(Context context, String whereClause, String[] selectionArgs) throws JSONException {
+        String[] projection = {
+                MediaStore.MediaColumns._ID,
+                MediaStore.Images.ImageColumns.DISPLAY_NAME,
+                MediaStore.Images.ImageColumns.WIDTH,
+                MediaStore.Images.ImageColumns.HEIGHT,
+                MediaStore.Images.ImageColumns.DATE_TAKEN,
+                MediaStore.Images.ImageColumns.LATITUDE,
+                MediaStore.Images.ImageColumns.LONGITUDE,
+                MediaStore.MediaColumns.DATA,
+                MediaStore.Images.ImageColumns.ORIENTATION,
+                MediaStore.MediaColumns.DATE_MODIFIED,
+        };
+        long start = System.nanoTime();
+        try (Cursor cursor = context.getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, whereClause, selectionArgs, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                stats.record(SaveStats.QUERY, System.nanoTime() - start, 0);
+                return null;
             }
+            long id = cursor.getLong(0);
+            String path = cursor.getString(7);
+            ImageInfo info = new ImageInfo();
+            info.width = cursor.getInt(2);
+            info.height = cursor.getInt(3);
+            info.latitude = cursor.getFloat(5);
+            info.longitude = cursor.getFloat(6);
+            info.orientation = getOrientation(id, cursor.isNull(8) ? LibraryIndex.NO_ORIENTATION : cursor.getInt(8), path, cursor.getLong(9));
+            JSONObject item = libraryItem(id, path, cursor.getString(1), info, cursor.getLong(4));
+            // Rows instead of bytes for the query stage
+            stats.record(SaveStats.QUERY, System.nanoTime() - start, 1);
+            return item;
+        } catch (RuntimeException e) {
+            stats.recordError(SaveStats.QUERY);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the EXIF orientation of a library row. MediaStore already stores the rotation in degrees,
+     * the file is only opened for rows without it, and those results are cached per id and modification date.
+     */
+    private int getOrientation(long id, int degrees, String path, long dateModified) {
+        if (degrees != LibraryIndex.NO_ORIENTATION) {
+            return degreesToOrientation(degrees);
         }
+        if (path == null) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+        String key = id + ":" + dateModified;
+        Integer cached = orientationCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int orientation;
+        try {
+            orientation = getImageOrientation(new File(path));
+        } catch (IOException e) {
+            orientation = ExifInterface.ORIENTATION_NORMAL;
+        }
+        orientationCache.put(key, orientation);
+        return orientation;
     }
 
-    private static void copyStream(InputStream source, OutputStream target) throws IOException {
-        int bufferSize = 1024;
-        byte[] buffer = new byte[bufferSize];
-        int len;
-        while ((len = source.read(buffer)) != -1) {
-            target.write(buffer, 0, len);
+    private static int degreesToOrientation(int degrees) {
+        switch ((degrees % 360 + 360) % 360) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
         }
     }
 
@@ -314,79 +1287,185 @@ public class ImageService {
         return albumDirectory;
     }
 
-    private void addFileToMediaLibrary(Context context, File file, final FilePathRunnable completion) {
+    private void addFileToMediaLibrary(Context context, File file, final MediaScannerConnection.OnScanCompletedListener completion) {
         String filePath = file.getAbsolutePath();
-        MediaScannerConnection.scanFile(context, new String[]{filePath}, null, new MediaScannerConnection.OnScanCompletedListener() {
-            @Override
-            public void onScanCompleted(String path, Uri uri) {
-                completion.run(path);
+        MediaScannerConnection.scanFile(context, new String[]{filePath}, null, completion);
+    }
+
+    // Legacy method for Android 9 and below
+    private void saveMedia(final Context context, String fileName, ImageSource source, ContentWriter writer, String album, DedupeRequest dedupe, final SaveTimer timer, final JSONObjectRunnable completion) throws IOException {
+        final SavedImage saved = writeToAlbumDirectory(fileName, source, album, writer, timer);
+        final File targetFile = saved.file;
+        if (dedupe != null) {
+            String existing = dedupe.record(targetFile.getAbsolutePath());
+            if (existing != null) {
+                // Same bytes are already in the library, drop the new copy
+                targetFile.delete();
+                completeWithExisting(context, existing, completion);
+                return;
+            }
+        }
+        final long start = timer.start(SaveStats.SCAN);
+        addFileToMediaLibrary(context, targetFile, (path, uri) -> {
+            timer.stop(SaveStats.SCAN, start, 0);
+            if (uri == null) {
+                completeWithFilePath(context, path, completion);
+                return;
+            }
+            try {
+                completion.run(libraryItem(ContentUris.parseId(uri), path, saved.displayName, saved.info, saved.dateTaken));
+            } catch (JSONException e) {
+                completion.run(new JSONObject());
             }
         });
     }
 
-    private Map<String, String> imageMimeToExtension = new HashMap<String, String>() {{
-        put("jpeg", ".jpg");
-        put("png", ".png");
-        put("gif", ".gif");
-        put("webp", ".webp");
-    }};
-
-    // Legacy method for Android 9 and below
-    private void saveMedia(Context context, CordovaInterface cordova, String fileName, String url, String album, Map<String, String> mimeToExtension, FilePathRunnable completion) throws IOException, URISyntaxException {
+    private static SavedImage writeToAlbumDirectory(String fileName, ImageSource source, String album, ContentWriter writer, SaveTimer timer) throws IOException {
         File albumDirectory = makeAlbumInPhotoLibrary(album);
-        File targetFile;
-        if (url.startsWith("data:")) {
-            Matcher matcher = dataURLPattern.matcher(url);
-            if (!matcher.find()) {
-                throw new IllegalArgumentException("The dataURL is in incorrect format");
-            }
-            String mime = matcher.group(2);
-            int dataPos = matcher.end();
-            String base64 = url.substring(dataPos);
-            byte[] decoded = Base64.decode(base64, Base64.DEFAULT);
-            if (decoded == null) {
-                throw new IllegalArgumentException("The dataURL could not be decoded");
-            }
-            String extension = mimeToExtension.get(mime);
-            if (extension == null) {
-                extension = "." + mime;
-            }
-            targetFile = new File(albumDirectory, fileName + extension);
-            FileOutputStream os = new FileOutputStream(targetFile);
-            os.write(decoded);
-            os.flush();
-            os.close();
-        } else {
-            String extension = url.contains(".") ? url.substring(url.lastIndexOf(".")) : "";
-            if (extension.contains("jpg") || extension.contains("JPG")) {
-                extension = ".jpg";
-            }
-            if (extension.contains("png") || extension.contains("PNG")) {
-                extension = ".png";
-            }
-            targetFile = new File(albumDirectory, fileName + extension);
-            InputStream is;
-            FileOutputStream os = new FileOutputStream(targetFile);
-            if (url.startsWith("file:///android_asset/")) {
-                String assetUrl = url.replace("file:///android_asset/", "");
-                is = cordova.getActivity().getApplicationContext().getAssets().open(assetUrl);
-            } else {
-                is = new URL(url).openStream();
+        File targetFile = new File(albumDirectory, fileName + source.extension);
+        byte[] header;
+        try (FileOutputStream os = new FileOutputStream(targetFile)) {
+            header = writeContent(os, writer, timer);
+        } catch (IOException | RuntimeException e) {
+            targetFile.delete();
+            throw e;
+        }
+        long start = timer.start(SaveStats.METADATA);
+        ImageInfo info = readImageInfo(header, targetFile);
+        timer.stop(SaveStats.METADATA, start, 0);
+        return new SavedImage(null, targetFile, targetFile.getAbsolutePath(), targetFile.getName(), info, info.dateTaken > 0 ? info.dateTaken : System.currentTimeMillis());
+    }
+
+    /**
+     * Hashes the bytes of a save while they are copied and records the result in the dedupe index.
+     * The source bytes are hashed before they are transcoded, so the transcode options are hashed along with them.
+     */
+    private static class DedupeRequest {
+        private final DedupeIndex index;
+        private final String url; // the URL of the source, with the transcode options if any
+        private final DedupeIndex.UrlEntry urlEntry; // cache validators of a remote download, null otherwise
+        private final MessageDigest digest;
+
+        DedupeRequest(DedupeIndex index, String url, ImageTranscoder.Options transcode, DedupeIndex.UrlEntry urlEntry) {
+            this.index = index;
+            this.url = url;
+            this.urlEntry = urlEntry;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
             }
-            copyStream(is, os);
-            os.flush();
-            os.close();
-            is.close();
+            if (transcode != null) {
+                digest.update(("transcode:" + transcode.key() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        InputStream wrap(InputStream is) {
+            return new DigestInputStream(is, digest);
+        }
+
+        /**
+         * Records the location of the saved bytes, returns the location of an earlier save of the same bytes or null.
+         */
+        String record(String location) {
+            String hash = toHex(digest.digest());
+            String existing = index.putContent(hash, location);
+            if (urlEntry != null) {
+                urlEntry.hash = hash;
+                index.putUrl(url, urlEntry);
+            }
+            return existing;
+        }
+
+        private static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
         }
-        addFileToMediaLibrary(context, targetFile, completion);
     }
 
-    public interface ChunkResultRunnable {
-        void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk);
+    /**
+     * Image bytes of a save, held in memory within the budget or spilled to a file in the cache directory.
+     */
+
+    private static class SavedImage {
+        final Uri uri; // MediaStore record on Android 10+
+        final File file; // written file on Android 9 and below
+        final String path; // file path of the image, used in its id
+        final String displayName;
+        final ImageInfo info;
+        final long dateTaken;
+
+        SavedImage(Uri uri, File file, String path, String displayName, ImageInfo info, long dateTaken) {
+            this.uri = uri;
+            this.file = file;
+            this.path = path;
+            this.displayName = displayName;
+            this.info = info;
+            this.dateTaken = dateTaken;
+        }
+    }
+
+    private static class ImageInfo {
+        int width = 0;
+        int height = 0;
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        float latitude = 0;
+        float longitude = 0;
+        long dateTaken = 0; // capture date from EXIF, 0 if the image has none
+    }
+
+    private interface ContentWriter {
+        void writeTo(OutputStream os) throws IOException;
+
+        // The local file region the content comes from, null if it can only be streamed
+        default FileRegion region() {
+            return null;
+        }
+    }
+
+    private static class PreparedItem {
+        final int index;
+        final SaveTimer timer; // started by the prefetch stage, finished by the writer
+        String fileName;
+        ImageSource source;
+        File spoolFile;
+        Exception error;
+
+        PreparedItem(int index, SaveTimer timer) {
+            this.index = index;
+            this.timer = timer;
+        }
+
+        // Deletes the download of an item that is not saved
+        void discard() {
+            if (spoolFile != null) {
+                spoolFile.delete();
+                spoolFile = null;
+            }
+        }
     }
 
-    public interface FilePathRunnable {
-        void run(String filePath);
+    private interface SaveTask {
+        void run() throws IOException;
+    }
+
+    public interface BatchProgressRunnable {
+        void run(JSONObject update, boolean isLast);
+    }
+
+    public interface ColumnsResultRunnable {
+        void run(JSONObject columns, int chunkNum, boolean isLastChunk);
+    }
+
+    private interface LibraryRowRunnable {
+        void run(LibraryIndex.Snapshot library, int row) throws JSONException;
+    }
+
+    public interface ChunkResultRunnable {
+        void run(ArrayList<JSONObject> chunk, int chunkNum, boolean isLastChunk);
     }
 
     public interface JSONObjectRunnable {
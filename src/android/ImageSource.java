@@ -0,0 +1,81 @@
+package cordova.plugin.saveimage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where the bytes of a save come from, with the mime type and file extension they are saved with.
+ */
+class ImageSource {
+    private static final Pattern DATA_URL_PATTERN = Pattern.compile("^data:(.+?)/(.+?);base64,");
+    private static final Map<String, String> IMAGE_MIME_TO_EXTENSION = new HashMap<String, String>() {{
+        put("jpeg", ".jpg");
+        put("png", ".png");
+        put("gif", ".gif");
+        put("webp", ".webp");
+    }};
+    static final String ASSET_URL_PREFIX = "file:///android_asset/";
+
+    final String url;
+    final String mime;
+    final String extension;
+    final int dataPos; // start of the base64 payload, -1 if not a data URL
+
+    ImageSource(String url, String mime, String extension, int dataPos) {
+        this.url = url;
+        this.mime = mime;
+        this.extension = extension;
+        this.dataPos = dataPos;
+    }
+
+    static ImageSource parse(String url) {
+        if (url.startsWith("data:")) {
+            Matcher matcher = DATA_URL_PATTERN.matcher(url);
+            if (!matcher.find()) {
+                throw new IllegalArgumentException("The dataURL is in incorrect format");
+            }
+            return new ImageSource(url, matcher.group(1) + "/" + matcher.group(2), extensionOf(matcher.group(2)), matcher.end());
+        }
+        String mime = "image/jpeg"; // Default
+        String extension = url.contains(".") ? url.substring(url.lastIndexOf(".")) : "";
+        if (extension.contains("jpg") || extension.contains("JPG")) {
+            extension = ".jpg";
+        } else if (extension.contains("png") || extension.contains("PNG")) {
+            extension = ".png";
+            mime = "image/png";
+        }
+        return new ImageSource(url, mime, extension, -1);
+    }
+
+    static ImageSource forMime(String mime) {
+        int slash = mime.indexOf('/');
+        if (slash <= 0 || slash == mime.length() - 1) {
+            throw new IllegalArgumentException("Invalid mime type: " + mime);
+        }
+        return new ImageSource("", mime, extensionOf(mime.substring(slash + 1)), -1);
+    }
+
+    private static String extensionOf(String subtype) {
+        String extension = IMAGE_MIME_TO_EXTENSION.get(subtype);
+        return extension != null ? extension : "." + subtype;
+    }
+
+    boolean isDataURL() {
+        return dataPos >= 0;
+    }
+
+    boolean isAsset() {
+        return url.startsWith(ASSET_URL_PREFIX);
+    }
+
+    // A local file outside the APK assets
+    boolean isFile() {
+        return url.startsWith("file://") && !isAsset();
+    }
+
+    boolean isRemote() {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+}
@@ -0,0 +1,259 @@
+package cordova.plugin.saveimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.os.Build;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Downscales and re-encodes images on save with bounded memory.
+ * The source is sampled down by a power of two while it is decoded, very large sources are decoded in strips
+ * so the full sampled image never has to fit in memory, and the result is compressed straight into the output.
+ */
+class ImageTranscoder {
+    // Above this many bytes of sampled pixels the source is decoded in strips instead of in one piece
+    private static final long REGION_DECODE_THRESHOLD = 16 * 1024 * 1024;
+    private static final long STRIP_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_QUALITY = 90;
+
+    static class Options {
+        int maxWidth;
+        int maxHeight;
+        Bitmap.CompressFormat format;
+        String mime;
+        int quality;
+
+        /**
+         * Reads maxWidth, maxHeight, format (jpeg, webp or png) and quality from the save options.
+         * Returns null if none of them is set, so the image is saved verbatim.
+         */
+        static Options fromJSON(JSONObject json, String sourceMime) {
+            if (json == null || !(json.has("maxWidth") || json.has("maxHeight") || json.has("format"))) {
+                return null;
+            }
+            Options options = new Options();
+            options.maxWidth = json.optInt("maxWidth", 0);
+            options.maxHeight = json.optInt("maxHeight", 0);
+            options.quality = Math.max(0, Math.min(100, json.optInt("quality", DEFAULT_QUALITY)));
+            String format = json.optString("format", null);
+            if (format == null) {
+                // Keep the format of the source when it can be encoded, otherwise fall back to JPEG
+                format = "image/png".equals(sourceMime) ? "png" : "image/webp".equals(sourceMime) ? "webp" : "jpeg";
+            }
+            switch (format.toLowerCase()) {
+                case "jpeg":
+                case "jpg":
+                    options.format = Bitmap.CompressFormat.JPEG;
+                    options.mime = "image/jpeg";
+                    break;
+                case "png":
+                    options.format = Bitmap.CompressFormat.PNG;
+                    options.mime = "image/png";
+                    break;
+                case "webp":
+                    options.format = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+                    options.mime = "image/webp";
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported format: " + format);
+            }
+            return options;
+        }
+
+        // Identifies the output these options produce from a given source, e.g. to tell dedupe entries apart
+        String key() {
+            return maxWidth + "x" + maxHeight + ";" + mime + ";" + quality;
+        }
+    }
+
+    /**
+     * Transcodes the source into the stream. The bitmaps are taken from the memory budget first, so concurrent
+     * transcodes wait for each other instead of running out of memory together.
+     */
+    static void transcode(File source, Options options, OutputStream os, ByteBudget budget) throws IOException {
+        String path = source.getAbsolutePath();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("The image could not be decoded");
+        }
+        int orientation = readOrientation(path);
+        boolean rotated = isOrientationSwapsDimensions(orientation);
+
+        // The limits apply to the image as displayed, the pixels are stored before rotation
+        int maxWidth = rotated ? options.maxHeight : options.maxWidth;
+        int maxHeight = rotated ? options.maxWidth : options.maxHeight;
+        double scale = 1;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (double) maxWidth / bounds.outWidth);
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (double) maxHeight / bounds.outHeight);
+        }
+        int targetWidth = Math.max(1, (int) Math.round(bounds.outWidth * scale));
+        int targetHeight = Math.max(1, (int) Math.round(bounds.outHeight * scale));
+
+        int sampleSize = 1;
+        while (bounds.outWidth / (sampleSize * 2) >= targetWidth && bounds.outHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        long sampledBytes = 4L * (bounds.outWidth / sampleSize) * (bounds.outHeight / sampleSize);
+        boolean inStrips = sampledBytes > REGION_DECODE_THRESHOLD && targetWidth * targetHeight < (bounds.outWidth / sampleSize) * (bounds.outHeight / sampleSize);
+
+        // At most the sampled source (or one strip of it) and two target sized bitmaps, while scaling and rotating, are alive at once
+        long targetBytes = 4L * targetWidth * targetHeight;
+        long reserved = budget.acquire((inStrips ? STRIP_BYTES : sampledBytes) + 2 * targetBytes);
+        try {
+            Bitmap bitmap = null;
+            if (inStrips) {
+                bitmap = decodeInStrips(path, bounds.outWidth, bounds.outHeight, sampleSize, targetWidth, targetHeight);
+                if (bitmap == null) {
+                    // No region decoder for the format, the whole sampled image is decoded after all.
+                    // Released first, waiting for more while holding the strip reservation could deadlock with other saves
+                    budget.release(reserved);
+                    reserved = 0;
+                    reserved = budget.acquire(sampledBytes + 2 * targetBytes);
+                }
+            }
+            transcode(path, options, os, bitmap, orientation, sampleSize, targetWidth, targetHeight);
+        } finally {
+            budget.release(reserved);
+        }
+    }
+
+    // Encodes the bitmap decoded in strips, or decodes the sampled source in one piece if there is none
+    private static void transcode(String path, Options options, OutputStream os, Bitmap bitmap, int orientation,
+                                  int sampleSize, int targetWidth, int targetHeight) throws IOException {
+        if (bitmap == null) {
+            BitmapFactory.Options decode = new BitmapFactory.Options();
+            decode.inSampleSize = sampleSize;
+            Bitmap sampled = BitmapFactory.decodeFile(path, decode);
+            if (sampled == null) {
+                throw new IOException("The image could not be decoded");
+            }
+            bitmap = sampled;
+            if (sampled.getWidth() != targetWidth || sampled.getHeight() != targetHeight) {
+                bitmap = Bitmap.createScaledBitmap(sampled, targetWidth, targetHeight, true);
+                if (bitmap != sampled) {
+                    sampled.recycle();
+                }
+            }
+        }
+
+        // The encoded image carries no EXIF data, so the orientation is applied to the pixels
+        Matrix matrix = orientationMatrix(orientation);
+        if (matrix != null) {
+            Bitmap oriented = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if (oriented != bitmap) {
+                bitmap.recycle();
+                bitmap = oriented;
+            }
+        }
+        try {
+            if (!bitmap.compress(options.format, options.quality, os)) {
+                throw new IOException("The image could not be encoded");
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Decodes the source strip by strip, each one sampled, and draws the strips scaled into the target bitmap.
+     * Returns null if the format has no region decoder, e.g. GIF.
+     */
+    private static Bitmap decodeInStrips(String path, int width, int height, int sampleSize, int targetWidth, int targetHeight) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(path, false);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            Bitmap target = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(target);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            // Strip height in source pixels, a multiple of the sample size so strips line up without seams
+            long sampledRowBytes = 4L * Math.max(1, width / sampleSize);
+            int stripHeight = (int) Math.max(sampleSize, (STRIP_BYTES / sampledRowBytes) * sampleSize);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Rect region = new Rect();
+            Rect destination = new Rect();
+            for (int top = 0; top < height; top += stripHeight) {
+                int bottom = Math.min(height, top + stripHeight);
+                region.set(0, top, width, bottom);
+                Bitmap strip = decoder.decodeRegion(region, options);
+                if (strip == null) {
+                    target.recycle();
+                    return null;
+                }
+                destination.set(0, (int) ((long) top * targetHeight / height), targetWidth, (int) ((long) bottom * targetHeight / height));
+                canvas.drawBitmap(strip, null, destination, paint);
+                strip.recycle();
+            }
+            return target;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private static int readOrientation(String path) {
+        try {
+            return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    private static boolean isOrientationSwapsDimensions(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    private static Matrix orientationMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                return null;
+        }
+        return matrix;
+    }
+}
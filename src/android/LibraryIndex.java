@@ -0,0 +1,359 @@
+package cordova.plugin.saveimage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.MediaStore;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * In-memory index of the images in the library, kept in primitive arrays instead of one object per row.
+ * A ContentObserver marks it stale on any media change. On Android 11+ a stale index only reads the rows modified
+ * since the MediaStore generation it was built at, and drops removed rows by diffing against the _IDs still in MediaStore.
+ * Older versions rebuild it with a single cursor pass.
+ * The per album aggregates are computed from the same rows and cached until the next change.
+ */
+class LibraryIndex {
+    private static final String SORT_ORDER = MediaStore.Images.ImageColumns.DATE_TAKEN + " DESC, " + MediaStore.MediaColumns._ID + " DESC";
+    private static final String[] PROJECTION = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.Images.ImageColumns.DISPLAY_NAME,
+            MediaStore.Images.ImageColumns.WIDTH,
+            MediaStore.Images.ImageColumns.HEIGHT,
+            MediaStore.Images.ImageColumns.BUCKET_ID,
+            MediaStore.Images.ImageColumns.DATE_TAKEN,
+            MediaStore.Images.ImageColumns.LATITUDE,
+            MediaStore.Images.ImageColumns.LONGITUDE,
+            MediaStore.MediaColumns.DATA,
+            MediaStore.Images.ImageColumns.ORIENTATION,
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME,
+    };
+    static final int NO_ORIENTATION = -1;
+
+    private final Context context;
+    private volatile boolean stale = true;
+    private Snapshot snapshot;
+    private Album[] albums; // aggregates of the current snapshot, null until asked for
+    private long generation = -1;
+    private String version;
+
+    LibraryIndex(Context context) {
+        this.context = context.getApplicationContext();
+        this.context.getContentResolver().registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                stale = true;
+            }
+        });
+    }
+
+    /**
+     * Rows of the library, newest first. Never modified once published, a refresh builds a new snapshot.
+     */
+    static class Snapshot {
+        final int size;
+        final int[] order; // row indexes sorted by date taken, newest first
+        final long[] ids;
+        final String[] fileNames;
+        final int[] widths;
+        final int[] heights;
+        final String[] albumIds;
+        final long[] datesTaken;
+        final float[] latitudes;
+        final float[] longitudes;
+        final String[] paths;
+        final int[] orientations; // degrees, NO_ORIENTATION if MediaStore has none
+        final long[] datesModified;
+        final String[] albumNames;
+
+        private Snapshot(int capacity, int[] order) {
+            this.size = order.length;
+            this.order = order;
+            ids = new long[capacity];
+            fileNames = new String[capacity];
+            widths = new int[capacity];
+            heights = new int[capacity];
+            albumIds = new String[capacity];
+            datesTaken = new long[capacity];
+            latitudes = new float[capacity];
+            longitudes = new float[capacity];
+            paths = new String[capacity];
+            orientations = new int[capacity];
+            datesModified = new long[capacity];
+            albumNames = new String[capacity];
+        }
+
+        private void read(Cursor cursor, int row) {
+            ids[row] = cursor.getLong(0);
+            fileNames[row] = cursor.getString(1);
+            widths[row] = cursor.getInt(2);
+            heights[row] = cursor.getInt(3);
+            albumIds[row] = cursor.getString(4);
+            datesTaken[row] = cursor.getLong(5);
+            latitudes[row] = cursor.getFloat(6);
+            longitudes[row] = cursor.getFloat(7);
+            paths[row] = cursor.getString(8);
+            orientations[row] = cursor.isNull(9) ? NO_ORIENTATION : cursor.getInt(9);
+            datesModified[row] = cursor.getLong(10);
+            albumNames[row] = cursor.getString(11);
+        }
+
+        private void copyRow(Snapshot target, int from, int to) {
+            target.ids[to] = ids[from];
+            target.fileNames[to] = fileNames[from];
+            target.widths[to] = widths[from];
+            target.heights[to] = heights[from];
+            target.albumIds[to] = albumIds[from];
+            target.datesTaken[to] = datesTaken[from];
+            target.latitudes[to] = latitudes[from];
+            target.longitudes[to] = longitudes[from];
+            target.paths[to] = paths[from];
+            target.orientations[to] = orientations[from];
+            target.datesModified[to] = datesModified[from];
+            target.albumNames[to] = albumNames[from];
+        }
+
+        private void copyTo(Snapshot target, int rows) {
+            System.arraycopy(ids, 0, target.ids, 0, rows);
+            System.arraycopy(fileNames, 0, target.fileNames, 0, rows);
+            System.arraycopy(widths, 0, target.widths, 0, rows);
+            System.arraycopy(heights, 0, target.heights, 0, rows);
+            System.arraycopy(albumIds, 0, target.albumIds, 0, rows);
+            System.arraycopy(datesTaken, 0, target.datesTaken, 0, rows);
+            System.arraycopy(latitudes, 0, target.latitudes, 0, rows);
+            System.arraycopy(longitudes, 0, target.longitudes, 0, rows);
+            System.arraycopy(paths, 0, target.paths, 0, rows);
+            System.arraycopy(orientations, 0, target.orientations, 0, rows);
+            System.arraycopy(datesModified, 0, target.datesModified, 0, rows);
+            System.arraycopy(albumNames, 0, target.albumNames, 0, rows);
+        }
+    }
+
+    static class Album {
+        final String id;
+        final String name;
+        int count = 0;
+        final long coverId; // newest image of the album
+        final String coverPath;
+
+        Album(String id, String name, long coverId, String coverPath) {
+            this.id = id;
+            this.name = name;
+            this.coverId = coverId;
+            this.coverPath = coverPath;
+        }
+    }
+
+    /**
+     * Returns the albums of the library, the one with the newest image first.
+     */
+    synchronized Album[] albums() {
+        Snapshot current = snapshot();
+        if (albums != null) {
+            return albums;
+        }
+        LinkedHashMap<String, Album> byId = new LinkedHashMap<String, Album>();
+        for (int position = 0; position < current.size; position++) {
+            int row = current.order[position];
+            Album album = byId.get(current.albumIds[row]);
+            if (album == null) {
+                // Rows are newest first, so the first row of an album is its cover
+                album = new Album(current.albumIds[row], current.albumNames[row], current.ids[row], current.paths[row]);
+                byId.put(album.id, album);
+            }
+            album.count++;
+        }
+        albums = byId.values().toArray(new Album[0]);
+        return albums;
+    }
+
+    /**
+     * Returns the current rows of the library, bringing the index up to date first if the library changed.
+     */
+    synchronized Snapshot snapshot() {
+        if (snapshot != null && !stale) {
+            return snapshot;
+        }
+        albums = null;
+        // Cleared before reading, a change during the refresh marks the index stale again
+        stale = false;
+        try {
+            if (snapshot == null || !applyChanges()) {
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            stale = true;
+            throw e;
+        }
+        return snapshot;
+    }
+
+    private void rebuild() {
+        long nextGeneration = currentGeneration();
+        ContentResolver resolver = context.getContentResolver();
+        try (Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION, null, null, SORT_ORDER)) {
+            int count = cursor != null ? cursor.getCount() : 0;
+            int[] order = new int[count];
+            Snapshot next = new Snapshot(count, order);
+            int row = 0;
+            while (cursor != null && cursor.moveToNext() && row < count) {
+                next.read(cursor, row);
+                order[row] = row;
+                row++;
+            }
+            snapshot = row == count ? next : compact(next, row);
+        }
+        generation = nextGeneration;
+        version = currentVersion();
+    }
+
+    /**
+     * Reads only the rows changed since the last refresh. Returns false if the index has to be rebuilt instead.
+     */
+    private boolean applyChanges() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || generation < 0) {
+            return false;
+        }
+        String currentVersion = currentVersion();
+        if (currentVersion == null || !currentVersion.equals(version)) {
+            // The MediaStore database was recreated, its generations start over
+            return false;
+        }
+        long nextGeneration = currentGeneration();
+        ContentResolver resolver = context.getContentResolver();
+        Snapshot current = snapshot;
+        Snapshot next;
+        try (Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                MediaStore.MediaColumns.GENERATION_MODIFIED + " > ?", new String[]{String.valueOf(generation)}, null)) {
+            if (cursor == null) {
+                return false;
+            }
+            if (cursor.getCount() == 0) {
+                next = current;
+            } else {
+                HashMap<Long, Integer> rowsById = new HashMap<Long, Integer>(current.size * 2);
+                for (int row = 0; row < current.size; row++) {
+                    rowsById.put(current.ids[row], row);
+                }
+                int capacity = current.size + cursor.getCount();
+                Snapshot changed = new Snapshot(capacity, new int[capacity]);
+                current.copyTo(changed, current.size);
+                int size = current.size;
+                while (cursor.moveToNext()) {
+                    Integer row = rowsById.get(cursor.getLong(0));
+                    changed.read(cursor, row != null ? row : size);
+                    if (row == null) {
+                        size++;
+                    }
+                }
+                next = sorted(changed, size);
+            }
+        }
+        // Removed rows are not reported by generation, they are the ids no longer in MediaStore.
+        // Comparing counts is not enough, a delete and an insert between two refreshes cancel out
+        long[] liveIds = liveIds(resolver);
+        if (liveIds == null) {
+            return false;
+        }
+        next = withoutRemoved(next, liveIds);
+        if (next.size != liveIds.length) {
+            // A row exists that neither the index nor the changes have, e.g. it was added during the refresh
+            return false;
+        }
+        snapshot = next;
+        generation = nextGeneration;
+        return true;
+    }
+
+    // The sorted ids of all images in MediaStore, or null if it could not be queried
+    private static long[] liveIds(ContentResolver resolver) {
+        try (Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, new String[]{MediaStore.MediaColumns._ID}, null, null, null)) {
+            if (cursor == null) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                ids[count++] = cursor.getLong(0);
+            }
+            long[] result = count == ids.length ? ids : Arrays.copyOf(ids, count);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    // Drops the rows whose id is not in the sorted live ids, keeping the order of the rest
+    private static Snapshot withoutRemoved(Snapshot rows, long[] liveIds) {
+        int kept = 0;
+        for (int row = 0; row < rows.size; row++) {
+            if (Arrays.binarySearch(liveIds, rows.ids[row]) >= 0) {
+                kept++;
+            }
+        }
+        if (kept == rows.size) {
+            return rows;
+        }
+        int[] order = new int[kept];
+        Snapshot result = new Snapshot(kept, order);
+        int next = 0;
+        for (int position = 0; position < rows.size; position++) {
+            int row = rows.order[position];
+            if (Arrays.binarySearch(liveIds, rows.ids[row]) >= 0) {
+                rows.copyRow(result, row, next);
+                order[next] = next;
+                next++;
+            }
+        }
+        return result;
+    }
+
+    // Orders the first rows of the snapshot like the library query, newest first
+    private static Snapshot sorted(final Snapshot rows, int size) {
+        Integer[] order = new Integer[size];
+        for (int row = 0; row < size; row++) {
+            order[row] = row;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byDate = Long.compare(rows.datesTaken[b], rows.datesTaken[a]);
+                return byDate != 0 ? byDate : Long.compare(rows.ids[b], rows.ids[a]);
+            }
+        });
+        int[] sortedOrder = new int[size];
+        for (int i = 0; i < size; i++) {
+            sortedOrder[i] = order[i];
+        }
+        Snapshot result = new Snapshot(size, sortedOrder);
+        rows.copyTo(result, size);
+        return result;
+    }
+
+    // The cursor ended early, e.g. rows were deleted while it was read
+    private static Snapshot compact(Snapshot rows, int size) {
+        Snapshot result = new Snapshot(size, Arrays.copyOf(rows.order, size));
+        rows.copyTo(result, size);
+        return result;
+    }
+
+    private long currentGeneration() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL);
+        }
+        return -1;
+    }
+
+    private String currentVersion() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return MediaStore.getVersion(context);
+        }
+        return null;
+    }
+}
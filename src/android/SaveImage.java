@@ -6,13 +6,21 @@ import android.content.pm.PackageManager;
 import android.os.Build;
 
 import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaArgs;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SaveImage extends CordovaPlugin {
 
@@ -22,14 +30,83 @@ public class SaveImage extends CordovaPlugin {
     private static final int REQUEST_AUTHORIZATION_REQ_CODE = 0;
     private static final String ACTION_REQUEST_AUTHORIZATION = "requestAuthorization";
     private static final String ACTION_SAVE_IMAGE = "saveImage";
+    private static final String ACTION_SAVE_IMAGES = "saveImages";
+    private static final String ACTION_SAVE_IMAGE_BYTES = "saveImageBytes";
+    private static final String ACTION_GET_LIBRARY = "getLibrary";
+    private static final String ACTION_GET_THUMBNAIL = "getThumbnail";
+    private static final String ACTION_GET_STATS = "getStats";
+    private static final String ACTION_GET_ALBUMS = "getAlbums";
+    private static final String ACTION_CANCEL = "cancel";
+    private static final String ACTION_ENQUEUE_SAVE = "enqueueSave";
+    private static final String ACTION_GET_JOB_STATUS = "getJobStatus";
+    private static final String ACTION_CANCEL_JOB = "cancelJob";
+    private static final int DEFAULT_THUMBNAIL_SIZE = 256;
+    private static final int DEFAULT_THUMBNAIL_QUALITY = 80;
+    private static final int DEFAULT_PREFETCH = 2;
+    // config.xml preferences controlling the save executor
+    private static final String PREF_POOL_SIZE = "SaveImagePoolSize";
+    private static final String PREF_QUEUE_DEPTH = "SaveImageQueueDepth";
+    private static final String PREF_READ_QUEUE_DEPTH = "SaveImageReadQueueDepth";
+    private static final String PREF_CONNECT_TIMEOUT = "SaveImageConnectTimeout";
+    private static final String PREF_READ_TIMEOUT = "SaveImageReadTimeout";
+    private static final String PREF_MAX_RETRIES = "SaveImageMaxRetries";
+    private static final String PREF_MAX_CONNECTIONS_PER_HOST = "SaveImageMaxConnectionsPerHost";
+    private static final String PREF_MEMORY_BUDGET = "SaveImageMemoryBudget";
+    private static final int DEFAULT_QUEUE_DEPTH = 64;
+    // A gallery screen asks for a thumbnail per visible tile at once
+    private static final int DEFAULT_READ_QUEUE_DEPTH = 512;
+    private static final long KEEP_ALIVE_SEC = 30;
+    private static final String QUEUE_FULL_ERROR = "Too many pending saves, try again later.";
+    private static final String READ_QUEUE_FULL_ERROR = "Too many pending reads, try again later.";
     private ImageService service;
-    private CallbackContext callbackContext;
+    private CallbackContext authorizationCallback;
+    private ThreadPoolExecutor saveExecutor;
+    // Library queries and thumbnails, so they never wait behind multi-MB saves
+    private ThreadPoolExecutor readExecutor;
+
+    @Override
+    protected void pluginInitialize() {
+        int poolSize = Math.max(1, preferences.getInteger(PREF_POOL_SIZE, Runtime.getRuntime().availableProcessors()));
+        int queueDepth = Math.max(1, preferences.getInteger(PREF_QUEUE_DEPTH, DEFAULT_QUEUE_DEPTH));
+        saveExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueDepth), new SaveThreadFactory("SaveImage-"));
+        saveExecutor.allowCoreThreadTimeOut(true);
+        int readQueueDepth = Math.max(1, preferences.getInteger(PREF_READ_QUEUE_DEPTH, DEFAULT_READ_QUEUE_DEPTH));
+        readExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(readQueueDepth), new SaveThreadFactory("SaveImage-read-"));
+        readExecutor.allowCoreThreadTimeOut(true);
+
+        ImageDownloader.Config downloads = new ImageDownloader.Config();
+        downloads.connectTimeoutMs = preferences.getInteger(PREF_CONNECT_TIMEOUT, downloads.connectTimeoutMs);
+        downloads.readTimeoutMs = preferences.getInteger(PREF_READ_TIMEOUT, downloads.readTimeoutMs);
+        downloads.maxRetries = preferences.getInteger(PREF_MAX_RETRIES, downloads.maxRetries);
+        downloads.maxConnectionsPerHost = preferences.getInteger(PREF_MAX_CONNECTIONS_PER_HOST, downloads.maxConnectionsPerHost);
+        ImageService.getInstance().configureDownloads(downloads);
+        int memoryBudgetMb = preferences.getInteger(PREF_MEMORY_BUDGET, 0);
+        if (memoryBudgetMb > 0) {
+            ImageService.getInstance().configureMemoryBudget(memoryBudgetMb * 1024L * 1024L);
+        }
+        // The plugin is loaded on start (onload in plugin.xml), so the jobs of an earlier process resume and
+        // its pending rows are cleaned up without waiting for the next call. Recovery runs on the job queue's thread
+        ImageService.getInstance().getJobQueue(getContext());
+    }
+
+    @Override
+    public void onDestroy() {
+        if (saveExecutor != null) {
+            saveExecutor.shutdown();
+        }
+        if (readExecutor != null) {
+            readExecutor.shutdown();
+        }
+        super.onDestroy();
+    }
 
     @Override
     public boolean execute(String action, final JSONArray args, final CallbackContext callbackContext) {
-        this.callbackContext = callbackContext;
         this.service = ImageService.getInstance();
         if (ACTION_REQUEST_AUTHORIZATION.equals(action)) {
+            this.authorizationCallback = callbackContext;
             try {
                 final JSONObject options = args.optJSONObject(0);
                 final boolean read = options.getBoolean("read");
@@ -45,21 +122,196 @@ public class SaveImage extends CordovaPlugin {
                 final String fileName = args.getString(0);
                 final String url = args.getString(1);
                 final String album = args.getString(2);
+                final JSONObject options = args.optJSONObject(3);
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    // Android 10+ uses scoped storage
-                    service.saveImage(getContext(), cordova, fileName, url, album, callbackContext::success);
-                } else if (!cordova.hasPermission(WRITE_EXTERNAL_STORAGE)) {
+                if (!hasWritePermission()) {
                     callbackContext.error(ImageService.PERMISSION_ERROR);
                     return false;
-                } else {
-                    service.saveImage(getContext(), cordova, fileName, url, album, callbackContext::success);
+                }
+                final Cancellation cancellation = startCancellable(options);
+                if (!runInBackground(callbackContext, () -> service.saveImage(getContext(), fileName, url, album, options, cancellation, callbackContext::success))) {
+                    service.finishCancellable(cancellation);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 callbackContext.error(e.getMessage());
             }
             return true;
+        } else if (ACTION_SAVE_IMAGE_BYTES.equals(action)) {
+            try {
+                final String fileName = args.getString(0);
+                // ArrayBuffer arguments arrive as base64 on the bridge, CordovaArgs turns them back into bytes
+                final byte[] data = new CordovaArgs(args).getArrayBuffer(1);
+                final String mime = args.getString(2);
+                final String album = args.getString(3);
+                final JSONObject options = args.optJSONObject(4);
+
+                if (!hasWritePermission()) {
+                    callbackContext.error(ImageService.PERMISSION_ERROR);
+                    return false;
+                }
+                // Nothing is taken from the memory budget until a worker starts the save, bytes that do not fit wait in the cache directory
+                final ImageBytes bytes = service.holdBytes(getContext(), data);
+                final Cancellation cancellation = startCancellable(options);
+                if (!runInBackground(callbackContext, () -> service.saveImageBytes(getContext(), fileName, bytes, mime, album, options, cancellation, callbackContext::success))) {
+                    bytes.release();
+                    service.finishCancellable(cancellation);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_GET_LIBRARY.equals(action)) {
+            try {
+                final JSONObject options = args.optJSONObject(0) != null ? args.optJSONObject(0) : new JSONObject();
+
+                if (!hasReadPermission()) {
+                    callbackContext.error(ImageService.PERMISSION_ERROR);
+                    return false;
+                }
+                if (options.optBoolean("columnar", false)) {
+                    runRead(callbackContext, () -> service.getLibraryColumns(getContext(), options, (columns, chunkNum, isLastChunk) ->
+                            sendLibraryChunk(callbackContext, "columns", columns, chunkNum, isLastChunk)));
+                    return true;
+                }
+                runRead(callbackContext, () -> service.getLibrary(getContext(), options, (chunk, chunkNum, isLastChunk) ->
+                        sendLibraryChunk(callbackContext, "library", new JSONArray(chunk), chunkNum, isLastChunk)));
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_GET_ALBUMS.equals(action)) {
+            try {
+                if (!hasReadPermission()) {
+                    callbackContext.error(ImageService.PERMISSION_ERROR);
+                    return false;
+                }
+                runRead(callbackContext, () -> callbackContext.success(service.getAlbums(getContext())));
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_GET_THUMBNAIL.equals(action)) {
+            try {
+                final String photoId = args.getString(0);
+                final int width = args.optInt(1, DEFAULT_THUMBNAIL_SIZE);
+                final int height = args.optInt(2, DEFAULT_THUMBNAIL_SIZE);
+                final int quality = args.optInt(3, DEFAULT_THUMBNAIL_QUALITY);
+
+                if (!hasReadPermission()) {
+                    callbackContext.error(ImageService.PERMISSION_ERROR);
+                    return false;
+                }
+                runRead(callbackContext, () -> callbackContext.success(service.getThumbnail(getContext(), photoId, width, height, quality)));
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_SAVE_IMAGES.equals(action)) {
+            try {
+                final JSONArray items = args.getJSONArray(0);
+                final String album = args.getString(1);
+                final JSONObject options = args.optJSONObject(2);
+                final int prefetch = options != null ? options.optInt("prefetch", DEFAULT_PREFETCH) : DEFAULT_PREFETCH;
+
+                if (!hasWritePermission()) {
+                    callbackContext.error(ImageService.PERMISSION_ERROR);
+                    return false;
+                }
+                final Cancellation cancellation = startCancellable(options);
+                if (!runInBackground(callbackContext, () -> service.saveImages(getContext(), items, album, prefetch, options != null && options.optBoolean("timings"), cancellation, (update, isLast) -> {
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, update);
+                    result.setKeepCallback(!isLast);
+                    callbackContext.sendPluginResult(result);
+                }))) {
+                    service.finishCancellable(cancellation);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_ENQUEUE_SAVE.equals(action)) {
+            try {
+                final String fileName = args.getString(0);
+                final String url = args.getString(1);
+                final String album = args.getString(2);
+                final JSONObject options = args.optJSONObject(3);
+
+                if (!hasWritePermission()) {
+                    callbackContext.error(ImageService.PERMISSION_ERROR);
+                    return false;
+                }
+                runInBackground(callbackContext, () -> {
+                    JSONObject result = new JSONObject();
+                    result.put("id", service.getJobQueue(getContext()).enqueue(fileName, url, album, options));
+                    callbackContext.success(result);
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_GET_JOB_STATUS.equals(action)) {
+            try {
+                final String id = args.isNull(0) ? null : args.getString(0);
+                // Off the bridge thread, the queue answers once it loaded the journal of the last run
+                runRead(callbackContext, () -> {
+                    SaveJobQueue jobs = service.getJobQueue(getContext());
+                    if (id == null) {
+                        callbackContext.success(jobs.getStatuses());
+                        return;
+                    }
+                    JSONObject status = jobs.getStatus(id);
+                    if (status == null) {
+                        callbackContext.error("No job with id " + id);
+                    } else {
+                        callbackContext.success(status);
+                    }
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_CANCEL_JOB.equals(action)) {
+            try {
+                final String id = args.getString(0);
+                runRead(callbackContext, () -> {
+                    if (service.getJobQueue(getContext()).cancel(id)) {
+                        callbackContext.success();
+                    } else {
+                        callbackContext.error("No job with id " + id);
+                    }
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_CANCEL.equals(action)) {
+            try {
+                JSONObject result = new JSONObject();
+                result.put("cancelled", service.cancel(args.getString(0)));
+                callbackContext.success(result);
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+        } else if (ACTION_GET_STATS.equals(action)) {
+            try {
+                final JSONObject options = args.optJSONObject(0);
+                callbackContext.success(service.getStats(options != null && options.optBoolean("reset")));
+            } catch (Exception e) {
+                e.printStackTrace();
+                callbackContext.error(e.getMessage());
+            }
+            return true;
         }
         return false;
     }
@@ -69,11 +321,11 @@ public class SaveImage extends CordovaPlugin {
         super.onRequestPermissionResult(requestCode, permissions, grantResults);
         for (int r : grantResults) {
             if (r == PackageManager.PERMISSION_DENIED) {
-                this.callbackContext.error(ImageService.PERMISSION_ERROR);
+                this.authorizationCallback.error(ImageService.PERMISSION_ERROR);
                 return;
             }
         }
-        this.callbackContext.success();
+        this.authorizationCallback.success();
     }
 
     private void requestAppropriatePermissions(boolean read, boolean write) {
@@ -105,11 +357,97 @@ public class SaveImage extends CordovaPlugin {
             cordova.requestPermissions(this, REQUEST_AUTHORIZATION_REQ_CODE,
                     permissions.toArray(new String[0]));
         } else {
-            this.callbackContext.success();
+            this.authorizationCallback.success();
+        }
+    }
+
+    // Registered before the save is queued, so it can be cancelled and its deadline runs while it waits for a worker
+    private Cancellation startCancellable(JSONObject options) {
+        return service.startCancellable(options != null && !options.isNull("id") ? options.optString("id") : null,
+                options != null ? options.optLong("timeoutMs", 0) : 0);
+    }
+
+    private static void sendLibraryChunk(CallbackContext callbackContext, String key, Object chunk, int chunkNum, boolean isLastChunk) {
+        try {
+            JSONObject result = new JSONObject();
+            result.put(key, chunk);
+            result.put("chunkNum", chunkNum);
+            result.put("isLastChunk", isLastChunk);
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+            pluginResult.setKeepCallback(!isLastChunk);
+            callbackContext.sendPluginResult(pluginResult);
+        } catch (JSONException e) {
+            callbackContext.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the task on the save executor, reporting failures to the given callback.
+     * Each task keeps its own CallbackContext, so overlapping calls never answer each other.
+     * Returns false if the task was rejected because the queue is full.
+     */
+    private boolean runInBackground(final CallbackContext callbackContext, final BackgroundTask task) {
+        return runOn(saveExecutor, QUEUE_FULL_ERROR, callbackContext, task);
+    }
+
+    // Like runInBackground, on the executor of library queries and thumbnails
+    private boolean runRead(final CallbackContext callbackContext, final BackgroundTask task) {
+        return runOn(readExecutor, READ_QUEUE_FULL_ERROR, callbackContext, task);
+    }
+
+    private static boolean runOn(ThreadPoolExecutor executor, String queueFullError, final CallbackContext callbackContext, final BackgroundTask task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    callbackContext.error(e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callbackContext.error(queueFullError);
+            return false;
+        }
+        return true;
+    }
+
+    // Android 10+ uses scoped storage, older versions need the write permission
+    private boolean hasWritePermission() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q || cordova.hasPermission(WRITE_EXTERNAL_STORAGE);
+    }
+
+    private boolean hasReadPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return cordova.hasPermission(READ_MEDIA_IMAGES);
         }
+        return cordova.hasPermission(READ_EXTERNAL_STORAGE);
     }
 
     private Context getContext() {
         return this.cordova.getActivity().getApplicationContext();
     }
+
+    private interface BackgroundTask {
+        void run() throws Exception;
+    }
+
+    private static class SaveThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadNum = new AtomicInteger(1);
+
+        SaveThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(() -> {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, namePrefix + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,510 @@
+package cordova.plugin.saveimage;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Base64InputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable queue of saves that survives the process being killed.
+ * Every job is journaled as a JSON file in the app-private files directory, remote images are downloaded into a
+ * part file next to it, so a job that is interrupted resumes its download with a Range request instead of starting over.
+ * Data URLs are decoded into a payload file once, the journal only refers to it.
+ * Failed attempts are retried with exponential backoff.
+ */
+class SaveJobQueue {
+    private static final String JOURNAL_DIRECTORY = "saveimage-jobs";
+    private static final String JOB_EXTENSION = ".json";
+    private static final String PART_EXTENSION = ".part";
+    private static final String PAYLOAD_EXTENSION = ".payload";
+    private static final int WORKERS = 2;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MS = 2000;
+    private static final long MAX_RETRY_BACKOFF_MS = 5 * 60 * 1000;
+    // Finished jobs are kept this long so their result can still be read after a restart
+    private static final long FINISHED_JOB_RETENTION_MS = 24 * 60 * 60 * 1000;
+
+    static final String STATE_QUEUED = "queued";
+    static final String STATE_RUNNING = "running";
+    static final String STATE_DONE = "done";
+    static final String STATE_FAILED = "failed";
+    static final String STATE_CANCELLED = "cancelled";
+
+    private final Context context;
+    private final ImageService service;
+    private final File directory;
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    // Open until the journal was loaded, a job enqueued before would be loaded twice and its payload swept as an orphan
+    private final CountDownLatch recovered = new CountDownLatch(1);
+
+    SaveJobQueue(Context context, ImageService service) {
+        this.context = context.getApplicationContext();
+        this.service = service;
+        this.directory = new File(this.context.getFilesDir(), JOURNAL_DIRECTORY);
+        final AtomicInteger threadNum = new AtomicInteger(1);
+        this.scheduler = new ScheduledThreadPoolExecutor(WORKERS, runnable -> {
+            Thread thread = new Thread(() -> {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "SaveImage-job-" + threadNum.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(() -> {
+            try {
+                recover();
+            } finally {
+                recovered.countDown();
+            }
+        });
+    }
+
+    private static class Job {
+        String id;
+        String fileName;
+        String url; // null for a data URL, its bytes are in the payload file
+        String mime; // mime type of the payload file
+        String album;
+        JSONObject options;
+        String state = STATE_QUEUED;
+        int attempts = 0;
+        int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        long nextAttemptAt = 0;
+        String validator; // ETag or Last-Modified of the partial download
+        boolean downloaded = false; // the part file holds the whole image, only the save is left
+        long downloadedLength = 0;
+        String error;
+        JSONObject result;
+        long createdAt;
+        long updatedAt;
+        volatile boolean cancelled = false;
+        Cancellation cancellation; // of the running attempt, not journaled
+
+        boolean isFinished() {
+            return STATE_DONE.equals(state) || STATE_FAILED.equals(state) || STATE_CANCELLED.equals(state);
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("fileName", fileName);
+            json.put("url", url);
+            json.put("mime", mime);
+            json.put("album", album);
+            json.put("options", options);
+            json.put("state", state);
+            json.put("attempts", attempts);
+            json.put("maxAttempts", maxAttempts);
+            json.put("nextAttemptAt", nextAttemptAt);
+            json.put("validator", validator);
+            json.put("downloaded", downloaded);
+            json.put("downloadedLength", downloadedLength);
+            json.put("error", error);
+            json.put("result", result);
+            json.put("createdAt", createdAt);
+            json.put("updatedAt", updatedAt);
+            return json;
+        }
+
+        static Job fromJSON(JSONObject json) throws JSONException {
+            Job job = new Job();
+            job.id = json.getString("id");
+            job.fileName = json.getString("fileName");
+            job.url = json.optString("url", null);
+            job.mime = json.optString("mime", null);
+            if (job.url == null && job.mime == null) {
+                throw new JSONException("The job has no source");
+            }
+            job.album = json.getString("album");
+            job.options = json.optJSONObject("options");
+            job.state = json.getString("state");
+            job.attempts = json.optInt("attempts", 0);
+            job.maxAttempts = json.optInt("maxAttempts", DEFAULT_MAX_ATTEMPTS);
+            job.nextAttemptAt = json.optLong("nextAttemptAt", 0);
+            job.validator = json.optString("validator", null);
+            job.downloaded = json.optBoolean("downloaded", false);
+            job.downloadedLength = json.optLong("downloadedLength", 0);
+            job.error = json.optString("error", null);
+            job.result = json.optJSONObject("result");
+            job.createdAt = json.optLong("createdAt", 0);
+            job.updatedAt = json.optLong("updatedAt", 0);
+            return job;
+        }
+    }
+
+    private static class JobCancelledException extends IOException {
+        JobCancelledException() {
+            super("The job was cancelled");
+        }
+    }
+
+    /**
+     * Journals a new save and schedules it. Returns the id of the job.
+     */
+    String enqueue(String fileName, String url, String album, JSONObject options) throws IOException {
+        awaitRecovery();
+        // Fails early on malformed URLs instead of on every attempt
+        ImageSource source = ImageSource.parse(url);
+        Job job = new Job();
+        job.id = UUID.randomUUID().toString();
+        job.fileName = fileName;
+        if (source.isDataURL()) {
+            // Rewriting a multi-MB data URL into the journal on every state change would be wasted I/O
+            writePayload(source, payloadFile(job));
+            job.mime = source.mime;
+        } else {
+            job.url = url;
+        }
+        job.album = album;
+        job.options = options;
+        job.maxAttempts = options != null ? Math.max(1, options.optInt("maxAttempts", DEFAULT_MAX_ATTEMPTS)) : DEFAULT_MAX_ATTEMPTS;
+        job.createdAt = System.currentTimeMillis();
+        synchronized (job) {
+            persist(job);
+        }
+        if (!journalFile(job).exists()) {
+            payloadFile(job).delete();
+            throw new IOException("Could not journal the job");
+        }
+        jobs.put(job.id, job);
+        schedule(job, 0);
+        return job.id;
+    }
+
+    /**
+     * Returns the status of the job, or null if there is no such job.
+     */
+    JSONObject getStatus(String id) throws JSONException {
+        awaitRecovery();
+        Job job = jobs.get(id);
+        return job != null ? statusOf(job) : null;
+    }
+
+    JSONArray getStatuses() throws JSONException {
+        awaitRecovery();
+        JSONArray statuses = new JSONArray();
+        for (Job job : jobs.values()) {
+            statuses.put(statusOf(job));
+        }
+        return statuses;
+    }
+
+    private JSONObject statusOf(Job job) throws JSONException {
+        synchronized (job) {
+            JSONObject status = new JSONObject();
+            status.put("id", job.id);
+            status.put("fileName", job.fileName);
+            status.put("state", job.state);
+            status.put("attempts", job.attempts);
+            if (STATE_QUEUED.equals(job.state) && job.nextAttemptAt > 0) {
+                status.put("nextAttemptAt", job.nextAttemptAt);
+            }
+            File part = partFile(job);
+            if (part.exists()) {
+                status.put("bytesDownloaded", part.length());
+            }
+            status.put("error", job.error);
+            status.put("result", job.result);
+            return status;
+        }
+    }
+
+    /**
+     * Cancels the job unless it already finished. Returns false if there is no such job.
+     * A running job stops at its next read or write, its partial download and a half-written image are deleted.
+     */
+    boolean cancel(String id) {
+        awaitRecovery();
+        Job job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+        synchronized (job) {
+            if (!job.isFinished()) {
+                job.cancelled = true;
+                if (!STATE_RUNNING.equals(job.state)) {
+                    finish(job, STATE_CANCELLED, null, null);
+                } else if (job.cancellation != null) {
+                    job.cancellation.cancel("The job was cancelled");
+                }
+            }
+        }
+        return true;
+    }
+
+    // Waits for the journal to be loaded, which is quick, so an interrupt is only passed on
+    private void awaitRecovery() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                recovered.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void schedule(Job job, long delayMs) {
+        scheduler.schedule(() -> run(job), Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    private void run(final Job job) {
+        final Cancellation cancellation = new Cancellation(null);
+        synchronized (job) {
+            if (job.isFinished() || STATE_RUNNING.equals(job.state)) {
+                return;
+            }
+            job.state = STATE_RUNNING;
+            job.attempts += 1;
+            job.error = null;
+            job.cancellation = cancellation;
+            persist(job);
+        }
+        try {
+            if (job.url == null) {
+                service.saveFile(context, job.fileName, ImageSource.forMime(job.mime), payloadFile(job), job.album, job.options, cancellation, result -> complete(job, result));
+                return;
+            }
+            ImageSource source = ImageSource.parse(job.url);
+            if (source.isRemote()) {
+                File part = partFile(job);
+                if (!job.downloaded || part.length() != job.downloadedLength) {
+                    download(job, part, cancellation);
+                }
+                service.saveFile(context, job.fileName, source, part, job.album, job.options, cancellation, result -> complete(job, result));
+            } else {
+                // Local sources are cheap to read again, they are saved in one go
+                service.saveImage(context, job.fileName, job.url, job.album, job.options, cancellation, result -> complete(job, result));
+            }
+        } catch (JobCancelledException e) {
+            synchronized (job) {
+                finish(job, STATE_CANCELLED, null, null);
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    /**
+     * Downloads the remote image of the job into the part file, continuing after the bytes an earlier attempt
+     * left there if the server still has the same version of the image.
+     */
+    private void download(Job job, File part, Cancellation cancellation) throws IOException {
+        synchronized (job) {
+            if (job.downloaded) {
+                // The part file does not match what was journaled as complete
+                job.downloaded = false;
+                part.delete();
+            }
+        }
+        long offset = part.exists() ? part.length() : 0;
+        ImageDownloader downloader = service.getDownloader();
+        ImageDownloader.Download download = null;
+        if (offset > 0 && job.validator != null) {
+            try {
+                download = downloader.resume(job.url, offset, job.validator, cancellation);
+            } catch (ImageDownloader.ResumeFailedException e) {
+                // The image changed on the server, start over
+            }
+        }
+        if (download == null) {
+            offset = 0;
+            download = downloader.open(job.url, cancellation);
+        }
+        synchronized (job) {
+            job.validator = download.getValidator();
+            persist(job);
+        }
+        try (InputStream is = download; OutputStream os = new FileOutputStream(part, offset > 0)) {
+            byte[] buffer = new byte[Streams.COPY_BUFFER_SIZE];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                if (job.cancelled) {
+                    throw new JobCancelledException();
+                }
+                os.write(buffer, 0, len);
+            }
+        } catch (ImageDownloader.ResumeFailedException e) {
+            // The bytes already in the part file can not be continued, the next attempt starts over
+            part.delete();
+            throw e;
+        }
+        // Journaled, so a save that fails or is killed after this point does not download again
+        synchronized (job) {
+            job.downloaded = true;
+            job.downloadedLength = part.length();
+            persist(job);
+        }
+    }
+
+    private void complete(Job job, JSONObject result) {
+        synchronized (job) {
+            finish(job, STATE_DONE, result, null);
+        }
+    }
+
+    private void fail(Job job, Exception e) {
+        synchronized (job) {
+            if (job.cancelled) {
+                finish(job, STATE_CANCELLED, null, null);
+                return;
+            }
+            // Only I/O errors are worth another attempt, bad arguments or a missing permission will not go away
+            if (!(e instanceof IOException) || job.attempts >= job.maxAttempts) {
+                finish(job, STATE_FAILED, null, e.getMessage());
+                return;
+            }
+            long delay = Math.min(MAX_RETRY_BACKOFF_MS, RETRY_BACKOFF_MS << Math.min(job.attempts - 1, 16));
+            job.cancellation = null;
+            job.state = STATE_QUEUED;
+            job.error = e.getMessage();
+            job.nextAttemptAt = System.currentTimeMillis() + delay;
+            persist(job);
+            schedule(job, delay);
+        }
+    }
+
+    // Called with the job locked
+    private void finish(Job job, String state, JSONObject result, String error) {
+        job.cancellation = null;
+        job.state = state;
+        job.result = result;
+        job.error = error;
+        job.nextAttemptAt = 0;
+        persist(job);
+        partFile(job).delete();
+        payloadFile(job).delete();
+    }
+
+    /**
+     * Loads the journal after a restart: jobs that were running when the process died are queued again,
+     * finished jobs past their retention are dropped, and MediaStore rows left pending and spool files left behind
+     * by the dead process are deleted.
+     */
+    private void recover() {
+        service.deleteStalePendingRows(context);
+        service.deleteStaleSpoolFiles(context);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(JOB_EXTENSION)) {
+                continue;
+            }
+            Job job;
+            try {
+                job = Job.fromJSON(new JSONObject(readFile(file)));
+            } catch (IOException | JSONException e) {
+                file.delete();
+                continue;
+            }
+            if (job.isFinished() && now - job.updatedAt > FINISHED_JOB_RETENTION_MS) {
+                file.delete();
+                partFile(job).delete();
+                payloadFile(job).delete();
+                continue;
+            }
+            // Only a job loaded for the first time is scheduled, a second copy would save the same image again
+            if (jobs.putIfAbsent(job.id, job) != null) {
+                continue;
+            }
+            if (!job.isFinished()) {
+                synchronized (job) {
+                    job.state = STATE_QUEUED;
+                    persist(job);
+                }
+                schedule(job, job.nextAttemptAt - now);
+            }
+        }
+        // Part and payload files without a job belong to jobs whose journal entry was lost
+        for (File file : files) {
+            String name = file.getName();
+            String extension = name.endsWith(PART_EXTENSION) ? PART_EXTENSION : name.endsWith(PAYLOAD_EXTENSION) ? PAYLOAD_EXTENSION : null;
+            if (extension != null && !jobs.containsKey(name.substring(0, name.length() - extension.length()))) {
+                file.delete();
+            }
+        }
+    }
+
+    private File partFile(Job job) {
+        return new File(directory, job.id + PART_EXTENSION);
+    }
+
+    private File payloadFile(Job job) {
+        return new File(directory, job.id + PAYLOAD_EXTENSION);
+    }
+
+    private File journalFile(Job job) {
+        return new File(directory, job.id + JOB_EXTENSION);
+    }
+
+    // Decodes the data URL into the payload file, synced before the journal entry that refers to it is written
+    private void writePayload(ImageSource source, File payload) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        try (InputStream is = new Base64InputStream(new AsciiInputStream(source.url, source.dataPos), Base64.DEFAULT);
+             FileOutputStream os = new FileOutputStream(payload)) {
+            Streams.copy(is, os);
+            os.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            payload.delete();
+            throw e;
+        }
+    }
+
+    // Writes the journal entry of the job atomically, called with the job locked
+    private void persist(Job job) {
+        job.updatedAt = System.currentTimeMillis();
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File file = journalFile(job);
+        File temp = new File(directory, job.id + JOB_EXTENSION + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(temp)) {
+            os.write(job.toJSON().toString().getBytes(StandardCharsets.UTF_8));
+            // The entry must be on disk before it replaces the old one, or a crash could leave an empty file
+            os.getFD().sync();
+        } catch (IOException | JSONException e) {
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream((int) file.length());
+            Streams.copy(is, os);
+            return new String(os.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package cordova.plugin.saveimage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters of the save and query pipelines: per stage sample counts, errors, bytes,
+ * total time and a latency histogram with power-of-two millisecond buckets.
+ */
+class SaveStats {
+    static final String DOWNLOAD = "download";
+    static final String DECODE = "decode";
+    static final String READ = "read";
+    static final String INSERT = "insert";
+    static final String WRITE = "write";
+    static final String TRANSCODE = "transcode";
+    static final String METADATA = "metadata";
+    static final String PUBLISH = "publish";
+    static final String SCAN = "scan";
+    static final String QUERY = "query";
+    static final String OTHER = "other";
+
+    // Bucket i counts samples below 2^i ms, the last bucket everything slower
+    private static final int HISTOGRAM_BUCKETS = 18;
+
+    private final ConcurrentHashMap<String, Stage> stages = new ConcurrentHashMap<String, Stage>();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong failedSaves = new AtomicLong();
+
+    private static class Stage {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    }
+
+    private Stage stage(String name) {
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            Stage created = new Stage();
+            stage = stages.putIfAbsent(name, created);
+            if (stage == null) {
+                stage = created;
+            }
+        }
+        return stage;
+    }
+
+    void record(String name, long nanos, long bytes) {
+        Stage stage = stage(name);
+        stage.count.incrementAndGet();
+        stage.bytes.addAndGet(bytes);
+        stage.totalNanos.addAndGet(nanos);
+        stage.histogram.incrementAndGet(bucketOf(nanos));
+    }
+
+    void recordError(String name) {
+        stage(name).errors.incrementAndGet();
+    }
+
+    void recordSave(boolean success) {
+        saves.incrementAndGet();
+        if (!success) {
+            failedSaves.incrementAndGet();
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    void reset() {
+        stages.clear();
+        saves.set(0);
+        failedSaves.set(0);
+    }
+
+    JSONObject toJSON() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("saves", saves.get());
+        result.put("failedSaves", failedSaves.get());
+        JSONObject stagesJSON = new JSONObject();
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            Stage stage = entry.getValue();
+            long count = stage.count.get();
+            JSONObject stageJSON = new JSONObject();
+            stageJSON.put("count", count);
+            stageJSON.put("errors", stage.errors.get());
+            stageJSON.put("bytes", stage.bytes.get());
+            stageJSON.put("totalMs", stage.totalNanos.get() / 1e6);
+            stageJSON.put("meanMs", count > 0 ? stage.totalNanos.get() / 1e6 / count : 0);
+            JSONArray histogram = new JSONArray();
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                JSONObject bucket = new JSONObject();
+                // Upper bound of the bucket in ms, null for the open-ended last bucket
+                bucket.put("ltMs", i < HISTOGRAM_BUCKETS - 1 ? (Object) (1L << i) : JSONObject.NULL);
+                bucket.put("count", stage.histogram.get(i));
+                histogram.put(bucket);
+            }
+            stageJSON.put("histogram", histogram);
+            stagesJSON.put(entry.getKey(), stageJSON);
+        }
+        result.put("stages", stagesJSON);
+        return result;
+    }
+}
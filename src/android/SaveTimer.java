@@ -0,0 +1,162 @@
+package cordova.plugin.saveimage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the stages of a single save with a monotonic clock.
+ * Stage times are accumulated while the save runs and added to the process-wide {@link SaveStats} when it finishes.
+ * A save is driven by one thread at a time, so the timer itself is not synchronized.
+ */
+class SaveTimer {
+    private final SaveStats stats;
+    private final long startNanos = System.nanoTime();
+    private final LinkedHashMap<String, long[]> stages = new LinkedHashMap<String, long[]>(); // stage -> {nanos, bytes}
+    private String activeStage;
+    private String failedStage;
+    private boolean finished = false;
+    private Cancellation cancellation;
+
+    SaveTimer(SaveStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Makes every timed read and write of the save fail once the save is cancelled, and the timed sources
+     * are closed on cancel so a blocked read returns.
+     */
+    void setCancellation(Cancellation cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    // The cancellation of the save, null if it can not be cancelled
+    Cancellation getCancellation() {
+        return cancellation;
+    }
+
+    long start(String stage) {
+        activeStage = stage;
+        return System.nanoTime();
+    }
+
+    void stop(String stage, long startNanos, long bytes) {
+        add(stage, System.nanoTime() - startNanos, bytes);
+        activeStage = null;
+    }
+
+    private void add(String stage, long nanos, long bytes) {
+        long[] totals = stages.get(stage);
+        if (totals == null) {
+            totals = new long[2];
+            stages.put(stage, totals);
+        }
+        totals[0] += nanos;
+        totals[1] += bytes;
+    }
+
+    /**
+     * Counts the time spent in read calls of the stream, and the bytes read, towards the stage.
+     */
+    InputStream timeReads(final String stage, InputStream is) throws IOException {
+        if (cancellation != null) {
+            try {
+                cancellation.register(is);
+            } catch (Cancellation.CancelledException e) {
+                // Cancelled while the stream was opened, nobody else will close it
+                is.close();
+                throw e;
+            }
+        }
+        return new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int len = read(single, 0, 1);
+                return len == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    if (cancellation != null) {
+                        cancellation.throwIfCancelled();
+                    }
+                    int len = in.read(buffer, offset, length);
+                    add(stage, System.nanoTime() - start, Math.max(len, 0));
+                    return len;
+                } catch (IOException | RuntimeException e) {
+                    failedStage = stage;
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * Counts the time spent in write calls of the stream, and the bytes written, towards the stage.
+     */
+    OutputStream timeWrites(final String stage, OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    if (cancellation != null) {
+                        cancellation.throwIfCancelled();
+                    }
+                    out.write(buffer, offset, length);
+                    add(stage, System.nanoTime() - start, length);
+                } catch (IOException | RuntimeException e) {
+                    failedStage = stage;
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds the stages of this save to the stats. A failure is counted against the stage that was running.
+     */
+    void finish(boolean success) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        for (Map.Entry<String, long[]> entry : stages.entrySet()) {
+            stats.record(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        if (!success) {
+            String stage = failedStage != null ? failedStage : activeStage != null ? activeStage : SaveStats.OTHER;
+            stats.recordError(stage);
+        }
+        stats.recordSave(success);
+    }
+
+    JSONObject toJSON() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("totalMs", (System.nanoTime() - startNanos) / 1e6);
+        JSONObject stagesJSON = new JSONObject();
+        for (Map.Entry<String, long[]> entry : stages.entrySet()) {
+            JSONObject stage = new JSONObject();
+            stage.put("ms", entry.getValue()[0] / 1e6);
+            stage.put("bytes", entry.getValue()[1]);
+            stagesJSON.put(entry.getKey(), stage);
+        }
+        result.put("stages", stagesJSON);
+        return result;
+    }
+}
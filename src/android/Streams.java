@@ -0,0 +1,29 @@
+package cordova.plugin.saveimage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream helpers shared by the save paths.
+ */
+final class Streams {
+    static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private Streams() {
+    }
+
+    static long copy(InputStream source, OutputStream target) throws IOException {
+        return copy(source, target, new byte[COPY_BUFFER_SIZE]);
+    }
+
+    static long copy(InputStream source, OutputStream target, byte[] buffer) throws IOException {
+        long total = 0;
+        int len;
+        while ((len = source.read(buffer)) != -1) {
+            target.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,165 @@
+package cordova.plugin.saveimage;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * Two level cache of encoded thumbnails: a byte-budgeted memory LRU in front of an app-private disk cache.
+ * Also keeps a few mutable bitmaps around so thumbnail decodes can reuse them through inBitmap.
+ */
+class ThumbnailCache {
+    private static final int MAX_POOLED_BITMAPS = 4;
+
+    private final LruCache<String, byte[]> memoryCache;
+    private final File directory;
+    private final long diskBudget;
+    private long diskSize = -1; // computed lazily on first disk access
+    private final ArrayDeque<Bitmap> bitmapPool = new ArrayDeque<Bitmap>();
+
+    ThumbnailCache(File directory, int memoryBudget, long diskBudget) {
+        this.directory = directory;
+        this.diskBudget = diskBudget;
+        this.memoryCache = new LruCache<String, byte[]>(memoryBudget) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    byte[] get(String key) {
+        byte[] data = memoryCache.get(key);
+        if (data != null) {
+            return data;
+        }
+        data = readFromDisk(key);
+        if (data != null) {
+            memoryCache.put(key, data);
+        }
+        return data;
+    }
+
+    void put(String key, byte[] data) {
+        memoryCache.put(key, data);
+        writeToDisk(key, data);
+    }
+
+    private synchronized byte[] readFromDisk(String key) {
+        File file = new File(directory, key);
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream is = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int len = is.read(data, offset, data.length - offset);
+                if (len == -1) {
+                    return null;
+                }
+                offset += len;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        // The modification time is the recency of the disk LRU
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    private synchronized void writeToDisk(String key, byte[] data) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File file = new File(directory, key);
+        File temp = new File(directory, key + ".tmp");
+        try (OutputStream os = new FileOutputStream(temp)) {
+            os.write(data);
+        } catch (IOException e) {
+            temp.delete();
+            return;
+        }
+        long previousLength = file.exists() ? file.length() : 0;
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        diskSize = getDiskSize() - previousLength + data.length;
+        if (diskSize > diskBudget) {
+            trimDisk();
+        }
+    }
+
+    private long getDiskSize() {
+        if (diskSize < 0) {
+            diskSize = 0;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    diskSize += file.length();
+                }
+            }
+        }
+        return diskSize;
+    }
+
+    // Deletes the least recently used files until the cache is back at three quarters of its budget
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (diskSize <= diskBudget * 3 / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                diskSize -= length;
+            }
+        }
+    }
+
+    /**
+     * Returns a pooled mutable bitmap that can hold at least the given number of bytes, or null.
+     */
+    synchronized Bitmap takeReusableBitmap(int byteCount) {
+        Iterator<Bitmap> iterator = bitmapPool.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            if (bitmap.getAllocationByteCount() >= byteCount) {
+                iterator.remove();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    synchronized void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmapPool.size() >= MAX_POOLED_BITMAPS) {
+            bitmap.recycle();
+            return;
+        }
+        bitmapPool.add(bitmap);
+    }
+}
@@ -0,0 +1,47 @@
+package cordova.plugin.saveimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming a library of rows through {@link ChunkEmitter} with the chunk sizes getLibrary is called with.
+ * The clock is read on every row, like SystemClock.elapsedRealtime on the device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkEmitterBenchmark {
+
+    @Param({"100", "1000", "0"})
+    int itemsInChunk;
+
+    @Param({"0.5"})
+    double chunkTimeSec;
+
+    @Param({"100000"})
+    int rows;
+
+    @Benchmark
+    public void emit(final Blackhole blackhole) {
+        ChunkEmitter<Integer> emitter = new ChunkEmitter<Integer>(itemsInChunk, chunkTimeSec, () -> System.nanoTime() / 1000000,
+                (chunk, chunkNum, isLastChunk) -> blackhole.consume(chunk.size()));
+        for (int i = 0; i < rows; i++) {
+            emitter.add(i);
+        }
+        emitter.finish();
+    }
+}
@@ -0,0 +1,78 @@
+package cordova.plugin.saveimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the base64 payload of a data URL: streamed through {@link AsciiInputStream} and a base64 decoder,
+ * as the saves do, against copying the payload out of the URL and decoding it into one array.
+ * The JDK decoder stands in for android.util.Base64InputStream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class DataUrlDecodeBenchmark {
+
+    @Param({"1048576", "8388608"})
+    int imageSize;
+
+    private String url;
+    private ImageSource source;
+
+    // Counts the bytes written to it, so the decoded image is not kept
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            count += length;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        byte[] image = new byte[imageSize];
+        new Random(42).nextBytes(image);
+        url = "data:image/jpeg;base64," + Base64.getMimeEncoder().encodeToString(image);
+        source = ImageSource.parse(url);
+    }
+
+    @Benchmark
+    public long streamed() throws IOException {
+        CountingOutputStream os = new CountingOutputStream();
+        try (InputStream is = Base64.getMimeDecoder().wrap(new AsciiInputStream(url, source.dataPos))) {
+            Streams.copy(is, os);
+        }
+        return os.count;
+    }
+
+    @Benchmark
+    public int substring() {
+        return Base64.getMimeDecoder().decode(url.substring(source.dataPos)).length;
+    }
+}
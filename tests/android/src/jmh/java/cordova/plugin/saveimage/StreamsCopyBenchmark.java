@@ -0,0 +1,71 @@
+package cordova.plugin.saveimage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File to file copy of an image sized payload through {@link Streams#copy} with different buffer sizes,
+ * the path of spooled downloads and local files that can not be transferred channel to channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamsCopyBenchmark {
+
+    @Param({"8192", "65536", "262144"})
+    int bufferSize;
+
+    @Param({"8388608"})
+    int payloadSize;
+
+    private File source;
+    private File target;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        source = File.createTempFile("copy-source", ".bin");
+        target = File.createTempFile("copy-target", ".bin");
+        Files.write(source.toPath(), payload);
+        buffer = new byte[bufferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        try (InputStream is = new FileInputStream(source); OutputStream os = new FileOutputStream(target)) {
+            return Streams.copy(is, os, buffer);
+        }
+    }
+}
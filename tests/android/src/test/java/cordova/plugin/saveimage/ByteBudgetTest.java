@@ -0,0 +1,87 @@
+package cordova.plugin.saveimage;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ByteBudgetTest {
+
+    @Test
+    public void tryAcquireFailsWhenFull() {
+        ByteBudget budget = new ByteBudget(100);
+        assertEquals(60, budget.tryAcquire(60));
+        assertEquals(-1, budget.tryAcquire(41));
+        assertEquals(40, budget.tryAcquire(40));
+        assertEquals(100, budget.getUsed());
+        budget.release(60);
+        assertEquals(40, budget.getUsed());
+    }
+
+    @Test
+    public void clampsRequestsToCapacity() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        assertEquals(100, budget.acquire(1000));
+        assertEquals(-1, budget.tryAcquire(1));
+        budget.release(100);
+        assertEquals(0, budget.tryAcquire(-5));
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void neverGoesBelowZero() {
+        ByteBudget budget = new ByteBudget(100);
+        budget.tryAcquire(10);
+        budget.release(50);
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void acquireWaitsForRelease() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        budget.acquire(80);
+        AtomicLong acquired = new AtomicLong(-1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                acquired.set(budget.acquire(50));
+            } catch (InterruptedIOException e) {
+                // Left at -1
+            }
+            done.countDown();
+        });
+        waiter.start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        budget.release(80);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(50, acquired.get());
+        assertEquals(50, budget.getUsed());
+    }
+
+    @Test
+    public void interruptedAcquireFails() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        budget.acquire(100);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread waiter = new Thread(() -> {
+            try {
+                budget.acquire(1);
+            } catch (InterruptedIOException e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        waiter.interrupt();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(failure.get() instanceof InterruptedIOException);
+        assertEquals(100, budget.getUsed());
+    }
+}
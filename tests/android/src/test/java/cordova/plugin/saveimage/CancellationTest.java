@@ -0,0 +1,100 @@
+package cordova.plugin.saveimage;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CancellationTest {
+
+    @Test
+    public void closesRegisteredResourcesOnce() throws Exception {
+        Cancellation cancellation = new Cancellation("save");
+        AtomicInteger closed = new AtomicInteger();
+        Closeable resource = closed::incrementAndGet;
+        cancellation.register(resource);
+        assertFalse(cancellation.isCancelled());
+        assertNull(cancellation.getReason());
+        cancellation.cancel("Cancelled");
+        cancellation.cancel("Timed out");
+        assertEquals(1, closed.get());
+        assertTrue(cancellation.isCancelled());
+        assertEquals("Cancelled", cancellation.getReason());
+    }
+
+    @Test
+    public void refusesResourcesAfterCancel() {
+        Cancellation cancellation = new Cancellation("save");
+        cancellation.cancel("Cancelled");
+        try {
+            cancellation.register(() -> { });
+            fail("Registered after cancel");
+        } catch (Cancellation.CancelledException e) {
+            assertEquals("Cancelled", e.getMessage());
+        }
+        try {
+            cancellation.attach();
+            fail("Attached after cancel");
+        } catch (Cancellation.CancelledException e) {
+            assertEquals("Cancelled", e.getMessage());
+        }
+    }
+
+    @Test
+    public void interruptsAttachedThread() throws Exception {
+        Cancellation cancellation = new Cancellation("save");
+        CountDownLatch attached = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread worker = new Thread(() -> {
+            try {
+                cancellation.attach();
+                attached.countDown();
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            } catch (Cancellation.CancelledException e) {
+                // Not expected, interrupted stays false
+            }
+        });
+        worker.start();
+        assertTrue(attached.await(5, TimeUnit.SECONDS));
+        cancellation.cancel("Cancelled");
+        worker.join(5000);
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    public void detachClearsInterruptAndResources() throws Exception {
+        Cancellation cancellation = new Cancellation("save");
+        AtomicInteger closed = new AtomicInteger();
+        cancellation.attach();
+        cancellation.register(closed::incrementAndGet);
+        Thread.currentThread().interrupt();
+        cancellation.detach();
+        assertFalse(Thread.currentThread().isInterrupted());
+        // A late cancel neither interrupts this thread nor closes resources of the finished save
+        cancellation.cancel("Cancelled");
+        assertFalse(Thread.interrupted());
+        assertEquals(0, closed.get());
+    }
+
+    @Test
+    public void closeStopsDeadline() {
+        Cancellation cancellation = new Cancellation("save");
+        CompletableFuture<Void> deadline = new CompletableFuture<Void>();
+        cancellation.setDeadline(deadline);
+        cancellation.close();
+        assertTrue(deadline.isCancelled());
+        assertFalse(cancellation.isCancelled());
+    }
+}
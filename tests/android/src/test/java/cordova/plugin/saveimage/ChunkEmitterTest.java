@@ -0,0 +1,106 @@
+package cordova.plugin.saveimage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkEmitterTest {
+
+    private static class FakeClock implements ChunkEmitter.Clock {
+        long now = 0;
+
+        @Override
+        public long elapsedMillis() {
+            return now;
+        }
+    }
+
+    private static class Chunk {
+        final List<Integer> items;
+        final int chunkNum;
+        final boolean isLastChunk;
+
+        Chunk(ArrayList<Integer> items, int chunkNum, boolean isLastChunk) {
+            this.items = new ArrayList<Integer>(items);
+            this.chunkNum = chunkNum;
+            this.isLastChunk = isLastChunk;
+        }
+    }
+
+    private final FakeClock clock = new FakeClock();
+    private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+    private ChunkEmitter<Integer> emitter(int itemsInChunk, double chunkTimeSec) {
+        return new ChunkEmitter<Integer>(itemsInChunk, chunkTimeSec, clock, (chunk, chunkNum, isLastChunk) -> chunks.add(new Chunk(chunk, chunkNum, isLastChunk)));
+    }
+
+    @Test
+    public void closesChunksByItemCount() {
+        ChunkEmitter<Integer> emitter = emitter(2, 0);
+        for (int i = 0; i < 5; i++) {
+            emitter.add(i);
+        }
+        emitter.finish();
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList(0, 1), chunks.get(0).items);
+        assertEquals(Arrays.asList(2, 3), chunks.get(1).items);
+        assertEquals(Arrays.asList(4), chunks.get(2).items);
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(i, chunks.get(i).chunkNum);
+            assertEquals(i == chunks.size() - 1, chunks.get(i).isLastChunk);
+        }
+    }
+
+    @Test
+    public void closesChunksByTime() {
+        ChunkEmitter<Integer> emitter = emitter(0, 0.5);
+        emitter.add(0);
+        clock.now = 499;
+        emitter.add(1);
+        assertTrue(chunks.isEmpty());
+        clock.now = 500;
+        emitter.add(2);
+        assertEquals(1, chunks.size());
+        assertEquals(Arrays.asList(0, 1, 2), chunks.get(0).items);
+        // The next chunk is timed from when the previous one was closed
+        clock.now = 999;
+        emitter.add(3);
+        assertEquals(1, chunks.size());
+        clock.now = 1000;
+        emitter.add(4);
+        assertEquals(2, chunks.size());
+        assertEquals(Arrays.asList(3, 4), chunks.get(1).items);
+    }
+
+    @Test
+    public void sendsEmptyLastChunk() {
+        ChunkEmitter<Integer> emitter = emitter(2, 0);
+        emitter.add(0);
+        emitter.add(1);
+        emitter.finish();
+        assertEquals(2, chunks.size());
+        assertFalse(chunks.get(0).isLastChunk);
+        assertTrue(chunks.get(1).items.isEmpty());
+        assertEquals(1, chunks.get(1).chunkNum);
+        assertTrue(chunks.get(1).isLastChunk);
+    }
+
+    @Test
+    public void keepsEverythingInOneChunkWithoutLimits() {
+        ChunkEmitter<Integer> emitter = emitter(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            clock.now += 10;
+            emitter.add(i);
+        }
+        emitter.finish();
+        assertEquals(1, chunks.size());
+        assertEquals(1000, chunks.get(0).items.size());
+        assertTrue(chunks.get(0).isLastChunk);
+    }
+}
@@ -0,0 +1,101 @@
+package cordova.plugin.saveimage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileRegionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] content(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private FileRegion region(byte[] bytes, long offset, long length, AtomicBoolean ownerClosed) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return new FileRegion(channel, offset, length, ownerClosed != null ? () -> ownerClosed.set(true) : null);
+    }
+
+    @Test
+    public void readsHeaderWithoutMovingPosition() throws Exception {
+        byte[] bytes = content(1000);
+        try (FileRegion region = region(bytes, 100, 500, null)) {
+            byte[] header = new byte[16];
+            assertEquals(16, region.readHeader(header));
+            assertArrayEquals(Arrays.copyOfRange(bytes, 100, 116), header);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            region.copyTo(os);
+            assertArrayEquals(Arrays.copyOfRange(bytes, 100, 600), os.toByteArray());
+        }
+    }
+
+    @Test
+    public void readsShortHeaderOfSmallRegion() throws Exception {
+        byte[] bytes = content(100);
+        try (FileRegion region = region(bytes, 90, 4, null)) {
+            byte[] header = new byte[16];
+            assertEquals(4, region.readHeader(header));
+            assertArrayEquals(Arrays.copyOfRange(bytes, 90, 94), Arrays.copyOf(header, 4));
+        }
+    }
+
+    @Test
+    public void transfersRangeIntoFile() throws Exception {
+        byte[] bytes = content(300000);
+        File target = folder.newFile();
+        try (FileRegion region = region(bytes, 12345, 200000, null);
+             FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            assertEquals(200000, region.transferTo(channel));
+        }
+        byte[] written = Files.readAllBytes(target.toPath());
+        assertEquals(200003, written.length);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 12345, 212345), Arrays.copyOfRange(written, 3, written.length));
+    }
+
+    @Test(expected = EOFException.class)
+    public void transferFailsWhenFileIsShorter() throws Exception {
+        File target = folder.newFile();
+        try (FileRegion region = region(content(100), 50, 100, null);
+             FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            region.transferTo(channel);
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void copyFailsWhenFileIsShorter() throws Exception {
+        try (FileRegion region = region(content(100), 50, 100, null)) {
+            region.copyTo(new ByteArrayOutputStream());
+        }
+    }
+
+    @Test
+    public void closesOwner() throws Exception {
+        AtomicBoolean ownerClosed = new AtomicBoolean();
+        FileRegion region = region(content(10), 0, 10, ownerClosed);
+        region.close();
+        assertTrue(ownerClosed.get());
+    }
+}
@@ -0,0 +1,120 @@
+package cordova.plugin.saveimage;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ImageBytesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService spillExecutor = Executors.newSingleThreadExecutor();
+    private final ImageBytes.Holder holder = new ImageBytes.Holder(spillExecutor);
+    private final ImageBytes.Spiller spiller = data -> {
+        File file = folder.newFile();
+        Files.write(file.toPath(), data);
+        return file;
+    };
+
+    @After
+    public void tearDown() {
+        spillExecutor.shutdownNow();
+    }
+
+    @Test
+    public void waitingBytesTakeNoBudget() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        byte[] data = new byte[60];
+        ImageBytes bytes = holder.hold(data, budget, spiller);
+        assertEquals(0, budget.getUsed());
+        assertEquals(60, holder.getWaiting());
+        assertNull(bytes.file());
+        bytes.reserve();
+        assertEquals(60, budget.getUsed());
+        assertEquals(0, holder.getWaiting());
+        assertArrayEquals(data, bytes.data());
+        bytes.release();
+        bytes.release();
+        assertEquals(0, budget.getUsed());
+        assertNull(bytes.data());
+    }
+
+    @Test
+    public void spillsWhatDoesNotFitNextToWaitingBytes() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        ImageBytes first = holder.hold(new byte[60], budget, spiller);
+        byte[] data = new byte[60];
+        data[59] = 7;
+        ImageBytes second = holder.hold(data, budget, spiller);
+        assertEquals(60, holder.getWaiting());
+        assertNull(second.data());
+        File file = second.file();
+        assertNotNull(file);
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        second.release();
+        assertFalse(file.exists());
+        // Released waiting bytes make room again
+        first.release();
+        assertEquals(0, holder.getWaiting());
+        assertNull(holder.hold(new byte[100], budget, spiller).file());
+    }
+
+    @Test
+    public void queuedSavesDoNotBlockRunningTranscodes() throws Exception {
+        ByteBudget budget = new ByteBudget(100);
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            // Bytes of saves waiting in the queue behind the transcodes, as handed over by the bridge
+            ArrayList<ImageBytes> queued = new ArrayList<ImageBytes>();
+            for (int i = 0; i < 4; i++) {
+                queued.add(holder.hold(new byte[40], budget, spiller));
+            }
+            ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (int i = 0; i < 2; i++) {
+                tasks.add(workers.submit(() -> {
+                    // A large transcode is clamped to the whole budget
+                    long reserved = budget.acquire(1000);
+                    Thread.sleep(20);
+                    budget.release(reserved);
+                    return null;
+                }));
+            }
+            for (final ImageBytes bytes : queued) {
+                tasks.add(workers.submit(() -> {
+                    try {
+                        bytes.reserve();
+                        if (bytes.data() == null) {
+                            assertEquals(40, bytes.file().length());
+                        }
+                    } finally {
+                        bytes.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(0, budget.getUsed());
+            assertEquals(0, holder.getWaiting());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package cordova.plugin.saveimage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImageDownloaderTest {
+    private static final String ETAG = "\"v1\"";
+
+    private interface Handler {
+        void handle(HttpExchange exchange, int requestNum) throws IOException;
+    }
+
+    private final byte[] image = new byte[100000];
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> ifRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch stop = new CountDownLatch(1);
+    private HttpServer server;
+    private volatile Handler handler;
+    private ImageDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) (i * 7);
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            ranges.add(exchange.getRequestHeaders().getFirst("Range"));
+            ifRanges.add(exchange.getRequestHeaders().getFirst("If-Range"));
+            try {
+                handler.handle(exchange, ranges.size());
+            } catch (IOException e) {
+                // The handler broke the transfer on purpose
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        ImageDownloader.Config config = new ImageDownloader.Config();
+        config.retryBackoffMs = 1;
+        config.readTimeoutMs = 10000;
+        downloader = new ImageDownloader(config);
+    }
+
+    @After
+    public void tearDown() {
+        stop.countDown();
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    // Serves the image with an ETag, honouring Range only if If-Range is absent or matches
+    private void serve(HttpExchange exchange, String etag, boolean breakAfterHalf) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        int start = 0;
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            if (start >= image.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + image.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (image.length - 1) + "/" + image.length);
+            exchange.sendResponseHeaders(206, image.length - start);
+        } else {
+            exchange.sendResponseHeaders(200, image.length);
+        }
+        OutputStream os = exchange.getResponseBody();
+        int end = breakAfterHalf ? image.length / 2 : image.length;
+        os.write(image, start, end - start);
+        os.flush();
+        if (breakAfterHalf) {
+            // Drops the connection before the announced length was sent
+            throw new IOException("Broken on purpose");
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            os.write(buffer, 0, len);
+        }
+        return os.toByteArray();
+    }
+
+    @Test
+    public void downloadsBodyAndValidator() throws IOException {
+        handler = (exchange, requestNum) -> serve(exchange, ETAG, false);
+        try (ImageDownloader.Download download = downloader.open(url("/a.jpg"))) {
+            assertArrayEquals(image, readAll(download));
+            assertEquals(ETAG, download.getValidator());
+            assertEquals(image.length, download.getReceived());
+        }
+        assertNull(ranges.get(0));
+    }
+
+    @Test
+    public void resumesBrokenTransferWithRange() throws IOException {
+        handler = (exchange, requestNum) -> serve(exchange, ETAG, requestNum == 1);
+        try (ImageDownloader.Download download = downloader.open(url("/a.jpg"))) {
+            assertArrayEquals(image, readAll(download));
+        }
+        assertEquals(2, ranges.size());
+        assertEquals("bytes=" + image.length / 2 + "-", ranges.get(1));
+        assertEquals(ETAG, ifRanges.get(1));
+    }
+
+    @Test
+    public void resumesEarlierDownloadWithIfRange() throws IOException {
+        handler = (exchange, requestNum) -> serve(exchange, ETAG, false);
+        try (ImageDownloader.Download download = downloader.resume(url("/a.jpg"), 40000, ETAG)) {
+            assertArrayEquals(Arrays.copyOfRange(image, 40000, image.length), readAll(download));
+            assertEquals(image.length, download.getReceived());
+        }
+        assertEquals("bytes=40000-", ranges.get(0));
+        assertEquals(ETAG, ifRanges.get(0));
+    }
+
+    @Test
+    public void failsResumeWhenImageChanged() throws IOException {
+        // If-Range does not match, so the server sends the whole new version
+        handler = (exchange, requestNum) -> serve(exchange, "\"v2\"", false);
+        try {
+            downloader.resume(url("/a.jpg"), 40000, ETAG).close();
+            fail("Spliced two versions of the image");
+        } catch (ImageDownloader.ResumeFailedException e) {
+            // Expected
+        }
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void failsResumeWithoutValidator() throws IOException {
+        // Without If-Range the full body cannot be told apart from a changed image
+        handler = (exchange, requestNum) -> {
+            exchange.sendResponseHeaders(200, image.length);
+            exchange.getResponseBody().write(image);
+        };
+        try {
+            downloader.resume(url("/a.jpg"), 40000, null).close();
+            fail("Spliced a body without a validator");
+        } catch (ImageDownloader.ResumeFailedException e) {
+            // Expected
+        }
+        assertNull(ifRanges.get(0));
+    }
+
+    @Test
+    public void completesResumeOfFullyReceivedBody() throws IOException {
+        handler = (exchange, requestNum) -> serve(exchange, ETAG, false);
+        try (ImageDownloader.Download download = downloader.resume(url("/a.jpg"), image.length, ETAG)) {
+            assertEquals(-1, download.read());
+            assertEquals(image.length, download.getReceived());
+        }
+    }
+
+    @Test
+    public void failsResumeOnOtherUnsatisfiableRange() throws IOException {
+        handler = (exchange, requestNum) -> {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + (image.length - 1));
+            exchange.sendResponseHeaders(416, -1);
+        };
+        try {
+            downloader.resume(url("/a.jpg"), image.length, ETAG).close();
+            fail("Accepted a 416 for a different length");
+        } catch (ImageDownloader.ResumeFailedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void retriesResponseTimeout() throws IOException {
+        ImageDownloader.Config config = new ImageDownloader.Config();
+        config.retryBackoffMs = 1;
+        config.readTimeoutMs = 200;
+        downloader = new ImageDownloader(config);
+        handler = (exchange, requestNum) -> {
+            if (requestNum == 1) {
+                // Answers only after the client gave up waiting
+                try {
+                    stop.await(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            serve(exchange, ETAG, false);
+        };
+        try (ImageDownloader.Download download = downloader.open(url("/a.jpg"))) {
+            assertArrayEquals(image, readAll(download));
+        }
+        assertEquals(2, ranges.size());
+    }
+
+    @Test
+    public void followsRedirects() throws IOException {
+        handler = (exchange, requestNum) -> {
+            if (exchange.getRequestURI().getPath().equals("/old.jpg")) {
+                exchange.getResponseHeaders().set("Location", "/new.jpg");
+                exchange.sendResponseHeaders(302, -1);
+            } else {
+                serve(exchange, ETAG, false);
+            }
+        };
+        try (ImageDownloader.Download download = downloader.open(url("/old.jpg"))) {
+            assertArrayEquals(image, readAll(download));
+        }
+        assertEquals(2, ranges.size());
+    }
+
+    @Test
+    public void answersNotModified() throws IOException {
+        handler = (exchange, requestNum) -> {
+            assertEquals(ETAG, exchange.getRequestHeaders().getFirst("If-None-Match"));
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(304, -1);
+        };
+        ImageDownloader.Download download = downloader.open(url("/a.jpg"), ETAG, null, null);
+        assertTrue(download.isNotModified());
+        assertEquals(ETAG, download.getETag());
+        assertTrue(download.getFreshUntil() > System.currentTimeMillis());
+    }
+
+    @Test
+    public void cancelAbortsWaitForResponse() throws Exception {
+        handler = (exchange, requestNum) -> {
+            try {
+                stop.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        Cancellation cancellation = new Cancellation("save");
+        Thread canceller = new Thread(() -> {
+            try {
+                while (ranges.isEmpty()) {
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            cancellation.cancel("Cancelled");
+        });
+        canceller.start();
+        long start = System.nanoTime();
+        try {
+            downloader.open(url("/a.jpg"), cancellation).close();
+            fail("Opened a cancelled download");
+        } catch (IOException e) {
+            // Expected, the read timeout is far longer
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void cancelledOpenReleasesPermit() throws IOException {
+        ImageDownloader.Config config = new ImageDownloader.Config();
+        config.maxConnectionsPerHost = 1;
+        downloader = new ImageDownloader(config);
+        handler = (exchange, requestNum) -> serve(exchange, ETAG, false);
+        Cancellation cancellation = new Cancellation("save");
+        cancellation.cancel("Cancelled");
+        try {
+            downloader.open(url("/a.jpg"), cancellation);
+            fail("Opened a cancelled download");
+        } catch (Cancellation.CancelledException e) {
+            // Expected
+        }
+        // Would wait forever if the cancelled open kept the only permit
+        try (ImageDownloader.Download download = downloader.open(url("/a.jpg"))) {
+            assertArrayEquals(image, readAll(download));
+        }
+    }
+}
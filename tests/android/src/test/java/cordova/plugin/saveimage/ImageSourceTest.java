@@ -0,0 +1,85 @@
+package cordova.plugin.saveimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageSourceTest {
+
+    @Test
+    public void parsesDataURL() {
+        String url = "data:image/png;base64,iVBORw0KGgo=";
+        ImageSource source = ImageSource.parse(url);
+        assertTrue(source.isDataURL());
+        assertEquals("image/png", source.mime);
+        assertEquals(".png", source.extension);
+        assertEquals("iVBORw0KGgo=", url.substring(source.dataPos));
+        assertFalse(source.isRemote());
+    }
+
+    @Test
+    public void mapsJpegDataURLToJpg() {
+        ImageSource source = ImageSource.parse("data:image/jpeg;base64,/9j/");
+        assertEquals("image/jpeg", source.mime);
+        assertEquals(".jpg", source.extension);
+    }
+
+    @Test
+    public void keepsUnknownSubtypeAsExtension() {
+        assertEquals(".heic", ImageSource.parse("data:image/heic;base64,AAAA").extension);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDataURLWithoutBase64() {
+        ImageSource.parse("data:image/png,rawbytes");
+    }
+
+    @Test
+    public void detectsRemoteURLs() {
+        ImageSource source = ImageSource.parse("https://example.com/images/photo.PNG");
+        assertTrue(source.isRemote());
+        assertFalse(source.isDataURL());
+        assertEquals("image/png", source.mime);
+        assertEquals(".png", source.extension);
+        assertTrue(ImageSource.parse("http://example.com/a.jpg").isRemote());
+    }
+
+    @Test
+    public void defaultsToJpeg() {
+        ImageSource source = ImageSource.parse("https://example.com/photo.JPG");
+        assertEquals("image/jpeg", source.mime);
+        assertEquals(".jpg", source.extension);
+        assertEquals("image/jpeg", ImageSource.parse("https://example.com/photo").mime);
+    }
+
+    @Test
+    public void tellsAssetsFromFiles() {
+        ImageSource asset = ImageSource.parse(ImageSource.ASSET_URL_PREFIX + "www/img/logo.png");
+        assertTrue(asset.isAsset());
+        assertFalse(asset.isFile());
+        ImageSource file = ImageSource.parse("file:///storage/emulated/0/Download/a.jpg");
+        assertTrue(file.isFile());
+        assertFalse(file.isAsset());
+        assertFalse(file.isRemote());
+    }
+
+    @Test
+    public void buildsSourceForMime() {
+        ImageSource source = ImageSource.forMime("image/webp");
+        assertEquals("image/webp", source.mime);
+        assertEquals(".webp", source.extension);
+        assertFalse(source.isDataURL());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMimeWithoutSubtype() {
+        ImageSource.forMime("image/");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMimeWithoutSlash() {
+        ImageSource.forMime("png");
+    }
+}
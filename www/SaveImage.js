@@ -1,9 +1,68 @@
 var exec = require('cordova/exec');
+var nextSaveId = 1;
+// Copies the options of a save and gives it an id for cancel, unless the caller picked one
+function withSaveId(options) {
+	var saveOptions = {};
+	for (var key in options) {
+		saveOptions[key] = options[key];
+	}
+	if (!saveOptions.id) {
+		saveOptions.id = "save-" + Date.now().toString(36) + "-" + (nextSaveId++);
+	}
+	return saveOptions;
+}
 module.exports = {
 	requestAuthorization: function (options, success, error) {
 		exec(success, error, "SaveImage", "requestAuthorization", [options]);
 	},
-	saveImage: function (fileName, image, album, success, error) {
-		exec(success, error, "SaveImage", "saveImage", [fileName, image, album]);
+	// Returns the id of the save, which can be passed to cancel
+	saveImage: function (fileName, image, album, success, error, options) {
+		var saveOptions = withSaveId(options);
+		exec(success, error, "SaveImage", "saveImage", [fileName, image, album, saveOptions]);
+		return saveOptions.id;
+	},
+	// Android only. Stops a save started by saveImage, saveImageBytes or saveImages, success receives { cancelled: false } if it already finished
+	cancel: function (id, success, error) {
+		exec(success, error, "SaveImage", "cancel", [id]);
+	},
+	// Android only. Returns the id of the save, which can be passed to cancel
+	saveImageBytes: function (fileName, arrayBuffer, mime, album, success, error, options) {
+		var saveOptions = withSaveId(options);
+		exec(success, error, "SaveImage", "saveImageBytes", [fileName, arrayBuffer, mime, album, saveOptions]);
+		return saveOptions.id;
+	},
+	// Android only. success is called once per chunk with { library, chunkNum, isLastChunk }, or { columns, ... } with columnar: true
+	getLibrary: function (options, success, error) {
+		exec(success, error, "SaveImage", "getLibrary", [options || {}]);
+	},
+	// Android only. success receives [{ id, name, count, coverId }], the album with the newest image first
+	getAlbums: function (success, error) {
+		exec(success, error, "SaveImage", "getAlbums", []);
+	},
+	// Android only. success receives the JPEG thumbnail as an ArrayBuffer
+	getThumbnail: function (id, width, height, quality, success, error) {
+		exec(success, error, "SaveImage", "getThumbnail", [id, width, height, quality]);
+	},
+	// Android only. success is called once per item and a last time with the { type: "done" } summary, returns the id of the batch for cancel
+	saveImages: function (items, album, options, success, error) {
+		var saveOptions = withSaveId(options);
+		exec(success, error, "SaveImage", "saveImages", [items, album, saveOptions]);
+		return saveOptions.id;
+	},
+	// Android only. Journals the save so it survives the app being killed, success receives { id } of the job
+	enqueueSave: function (fileName, image, album, options, success, error) {
+		exec(success, error, "SaveImage", "enqueueSave", [fileName, image, album, options || {}]);
+	},
+	// Android only. success receives the status of the job, or of all jobs if id is null
+	getJobStatus: function (id, success, error) {
+		exec(success, error, "SaveImage", "getJobStatus", [id]);
+	},
+	// Android only
+	cancelJob: function (id, success, error) {
+		exec(success, error, "SaveImage", "cancelJob", [id]);
+	},
+	// Android only. success receives the per stage counters of all saves and queries, { reset: true } starts counting anew
+	getStats: function (options, success, error) {
+		exec(success, error, "SaveImage", "getStats", [options || {}]);
 	}
 };
\ No newline at end of file